@@ -0,0 +1,158 @@
+package com.google.glassware;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.base.Function;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The datastore calls the app makes outside of transactions. Every call
+ * starts its RPC and returns straight away, so callers can go on with Mirror
+ * requests or other datastore calls and only {@link #await} a result where
+ * they need it. Writes are awaited too, so their failures surface in the
+ * request (and the task retries) instead of being logged after the fact.
+ * <p>
+ * Transactional code (broadcasts, location history, geofence states) uses
+ * the blocking {@code DatastoreService} directly.
+ */
+public class AsyncStore {
+	private static AsyncDatastoreService datastore() {
+		return DatastoreServiceFactory.getAsyncDatastoreService();
+	}
+
+	/**
+	 * Gets one entity. Unlike the datastore's own get, a missing entity comes
+	 * back as null rather than an exception.
+	 */
+	public static Future<Entity> get(final Key key) {
+		return transform(datastore().get(Collections.singleton(key)), new Function<Map<Key, Entity>, Entity>() {
+			@Override
+			public Entity apply(Map<Key, Entity> entities) {
+				return entities.get(key);
+			}
+		});
+	}
+
+	/**
+	 * Applies the function to the future's result when it is first asked for,
+	 * and remembers the outcome. The datastore and memcache futures aren't
+	 * listenable, so {@code Futures.transform} can't be used, and
+	 * {@code Futures.lazyTransform} would run the function again on every get.
+	 */
+	public static <F, T> Future<T> transform(Future<F> input, Function<? super F, ? extends T> function) {
+		return new TransformedFuture<F, T>(input, function);
+	}
+
+	/**
+	 * Gets the entities that exist, keyed by key.
+	 */
+	public static Future<Map<Key, Entity>> get(Iterable<Key> keys) {
+		return datastore().get(keys);
+	}
+
+	public static Future<Key> put(Entity entity) {
+		return datastore().put(entity);
+	}
+
+	public static Future<List<Key>> put(Iterable<Entity> entities) {
+		return datastore().put(entities);
+	}
+
+	public static Future<Void> delete(Key... keys) {
+		return datastore().delete(keys);
+	}
+
+	public static Future<Void> delete(Iterable<Key> keys) {
+		return datastore().delete(keys);
+	}
+
+	/**
+	 * Queries run ahead in the background as their results are iterated.
+	 */
+	public static PreparedQuery prepare(Query query) {
+		return datastore().prepare(query);
+	}
+
+	private static class TransformedFuture<F, T> implements Future<T> {
+		private final Future<F> input;
+		private final Function<? super F, ? extends T> function;
+		private boolean applied;
+		private T value;
+		private RuntimeException failure;
+
+		TransformedFuture(Future<F> input, Function<? super F, ? extends T> function) {
+			this.input = input;
+			this.function = function;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			return apply(input.get());
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return apply(input.get(timeout, unit));
+		}
+
+		private synchronized T apply(F result) throws ExecutionException {
+			if (!applied) {
+				try {
+					value = function.apply(result);
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+				applied = true;
+			}
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return value;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return input.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return input.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return input.isDone();
+		}
+	}
+
+	/**
+	 * Waits for a call started by this class, rethrowing its failure as the
+	 * runtime exception the blocking datastore would have thrown.
+	 */
+	public static <V> V await(Future<V> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatastoreFailureException("Interrupted waiting for the datastore", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new DatastoreFailureException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.google.glassware;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attachments served by {@link AttachmentProxyServlet}. Attachments never
+ * change, so once one is downloaded we remember, per user, which content it
+ * is: its type and the digest it is kept under in the {@link MediaStore}.
+ * The digest also serves as its ETag. Metadata is kept in process and in
+ * memcache.
+ */
+public class AttachmentCache {
+	/** Larger attachments are streamed through without being cached. */
+	static final int MAX_CACHED_BYTES = 900 * 1024;
+
+	private static final String MEMCACHE_META_PREFIX = "attachment-meta:";
+	private static final int MEMCACHE_SECONDS = 24 * 60 * 60;
+
+	private static final Cache<String, Metadata> METADATA = CacheBuilder.newBuilder().maximumSize(5000)
+			.expireAfterAccess(1, TimeUnit.HOURS).build();
+
+	/**
+	 * What a user's attachment is: its type and the digest of its content.
+	 */
+	@SuppressWarnings("serial")
+	public static class Metadata implements Serializable {
+		private final String contentType;
+		private final String digest;
+
+		Metadata(String contentType, String digest) {
+			this.contentType = contentType;
+			this.digest = digest;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+	}
+
+	/**
+	 * Returns what is known about the user's attachment, or null if it has
+	 * not been downloaded lately.
+	 */
+	public static Metadata getMetadata(String userId, String timelineItemId, String attachmentId) {
+		String key = metadataKey(userId, timelineItemId, attachmentId);
+		Metadata metadata = METADATA.getIfPresent(key);
+		if (metadata == null) {
+			metadata = (Metadata) getMemcache().get(MEMCACHE_META_PREFIX + key);
+			if (metadata != null) {
+				METADATA.put(key, metadata);
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Returns the content with the given digest, or null if it is not cached.
+	 */
+	public static byte[] getContent(String digest) {
+		return MediaStore.get(digest);
+	}
+
+	/**
+	 * Caches a downloaded attachment.
+	 * 
+	 * @return its metadata
+	 */
+	public static Metadata put(String userId, String timelineItemId, String attachmentId, String contentType,
+			byte[] content) {
+		Metadata metadata = new Metadata(contentType, MediaStore.put(content));
+		String key = metadataKey(userId, timelineItemId, attachmentId);
+
+		METADATA.put(key, metadata);
+		getMemcache().put(MEMCACHE_META_PREFIX + key, metadata, Expiration.byDeltaSeconds(MEMCACHE_SECONDS));
+		return metadata;
+	}
+
+	private static String metadataKey(String userId, String timelineItemId, String attachmentId) {
+		return userId + "/" + timelineItemId + "/" + attachmentId;
+	}
+
+	private static MemcacheService getMemcache() {
+		return MemcacheServiceFactory.getMemcacheService();
+	}
+}
@@ -15,12 +15,15 @@
  */
 package com.google.glassware;
 
-import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpResponse;
 import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -29,13 +32,20 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Allows logged in users to view their timeline item attachments by proxying
- * their app engine session to their OAuth session.
+ * their app engine session to their OAuth session. Attachments are cached
+ * by {@link AttachmentCache} and served with an ETag and byte range support.
  * 
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class AttachmentProxyServlet extends HttpServlet {
   private static final Logger LOG = Logger.getLogger(AttachmentProxyServlet.class.getSimpleName());
 
+  /** Attachments never change, so browsers may keep them this long. */
+  private static final int MAX_AGE_SECONDS = 24 * 60 * 60;
+
+  /** A single byte range; either end may be left out. */
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
       IOException {
@@ -44,20 +54,130 @@ public class AttachmentProxyServlet extends HttpServlet {
     if (attachmentId == null || timelineItemId == null) {
       LOG.warning("attempted to load image attachment with missing IDs");
       resp.sendError(400);
+      return;
     }
     // identify the viewing user
-    Credential credential = AuthUtil.getCredential(req);
+    AuthContext authContext = AuthContext.get(req);
+    String userId = authContext.getUserId();
+
+    // Serve it from the cache if we can; the browser may even have it
+    AttachmentCache.Metadata metadata =
+        AttachmentCache.getMetadata(userId, timelineItemId, attachmentId);
+    if (metadata != null && isNotModified(req, metadata.getDigest())) {
+      setCacheHeaders(resp, metadata.getDigest());
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    byte[] content = metadata == null ? null : AttachmentCache.getContent(metadata.getDigest());
+    if (content != null) {
+      serve(req, resp, metadata, content);
+      return;
+    }
+
+    // Download it from Mirror
+    HttpResponse attachment = MirrorClient.getAttachmentResponse(authContext.getCredential(),
+        userId, timelineItemId, attachmentId);
+    String contentType = attachment.getContentType() != null ? attachment.getContentType()
+        : "application/octet-stream";
+    Long contentLength = attachment.getHeaders().getContentLength();
+    InputStream attachmentInputStream = attachment.getContent();
+    try {
+      // Read no more than could be cached; the buffer grows with what
+      // actually arrives
+      byte[] head = contentLength != null && contentLength > AttachmentCache.MAX_CACHED_BYTES
+          ? new byte[0]
+          : ByteStreams.toByteArray(
+              ByteStreams.limit(attachmentInputStream, AttachmentCache.MAX_CACHED_BYTES + 1));
+      if (head.length > 0 && head.length <= AttachmentCache.MAX_CACHED_BYTES) {
+        metadata =
+            AttachmentCache.put(userId, timelineItemId, attachmentId, contentType, head);
+        serve(req, resp, metadata, head);
+      } else {
+        // Too big to cache, just pass it through
+        resp.setContentType(contentType);
+        OutputStream out = resp.getOutputStream();
+        out.write(head);
+        ByteStreams.copy(attachmentInputStream, out);
+      }
+    } finally {
+      attachmentInputStream.close();
+    }
+  }
+
+  /**
+   * Writes cached content, honouring a single byte range if one was asked
+   * for.
+   */
+  private static void serve(HttpServletRequest req, HttpServletResponse resp,
+      AttachmentCache.Metadata metadata, byte[] content) throws IOException {
+    setCacheHeaders(resp, metadata.getDigest());
+    resp.setHeader("Accept-Ranges", "bytes");
+    if (isNotModified(req, metadata.getDigest())) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    resp.setContentType(metadata.getContentType());
 
-    // Get the content type
-    String contentType =
-        MirrorClient.getAttachmentContentType(credential, timelineItemId, attachmentId);
+    int start = 0;
+    int end = content.length - 1;
+    String range = req.getHeader("Range");
+    Matcher matcher = range == null ? null : RANGE.matcher(range);
+    if (matcher != null && matcher.matches()
+        && (matcher.group(1).length() > 0 || matcher.group(2).length() > 0)) {
+      if (matcher.group(1).length() > 0) {
+        start = parseOffset(matcher.group(1));
+        if (matcher.group(2).length() > 0) {
+          end = Math.min(parseOffset(matcher.group(2)), content.length - 1);
+        }
+      } else if (matcher.group(2).length() > 0) {
+        // Suffix range: the last N bytes
+        start = Math.max(content.length - parseOffset(matcher.group(2)), 0);
+      }
+      if (start > end) {
+        resp.setHeader("Content-Range", "bytes */" + content.length);
+        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+    }
+    resp.setContentLength(end - start + 1);
+    resp.getOutputStream().write(content, start, end - start + 1);
+  }
+
+  /** Sent with 304s as well as content, so browsers keep revalidating the same way. */
+  private static void setCacheHeaders(HttpServletResponse resp, String digest) {
+    resp.setHeader("ETag", etag(digest));
+    resp.setHeader("Cache-Control", "private, max-age=" + MAX_AGE_SECONDS);
+  }
+
+  private static boolean isNotModified(HttpServletRequest req, String digest) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String etag = etag(digest);
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-    // Get the attachment bytes
-    InputStream attachmentInputStream =
-        MirrorClient.getAttachmentInputStream(credential, timelineItemId, attachmentId);
+  private static String etag(String digest) {
+    return "\"" + digest + "\"";
+  }
 
-    // Write it out
-    resp.setContentType(contentType);
-    ByteStreams.copy(attachmentInputStream, resp.getOutputStream());
+  /**
+   * Offsets too big for an int are past the end of anything we cache.
+   */
+  private static int parseOffset(String digits) {
+    try {
+      return Integer.parseInt(digits);
+    } catch (NumberFormatException e) {
+      return Integer.MAX_VALUE;
+    }
   }
 }
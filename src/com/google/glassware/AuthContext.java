@@ -0,0 +1,82 @@
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * The signed in user for a single request. {@link AuthFilter} resolves it
+ * once and servlets and JSPs read it back with {@link #get}, so the
+ * credential is loaded at most once per request.
+ */
+public class AuthContext {
+	private static final String REQUEST_ATTRIBUTE = AuthContext.class
+			.getName();
+	private static final String VERIFIED_UNTIL_ATTRIBUTE = "authVerifiedUntil";
+
+	/** How long a successful credential check is trusted by the session. */
+	private static final long VERIFIED_MILLIS = 5 * 60 * 1000;
+
+	private final String userId;
+	private Credential credential;
+	private boolean credentialLoaded = false;
+
+	private AuthContext(String userId) {
+		this.userId = userId;
+	}
+
+	/**
+	 * Returns the context for this request, creating it on first use.
+	 */
+	public static AuthContext get(HttpServletRequest request) {
+		AuthContext context = (AuthContext) request
+				.getAttribute(REQUEST_ATTRIBUTE);
+		if (context == null) {
+			context = new AuthContext(AuthUtil.getUserId(request));
+			request.setAttribute(REQUEST_ATTRIBUTE, context);
+		}
+		return context;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	/**
+	 * Returns the user's credential, loading it the first time it is asked
+	 * for.
+	 * 
+	 * @return the credential or null if no one is logged in
+	 */
+	public Credential getCredential() throws IOException {
+		if (!credentialLoaded) {
+			credential = AuthUtil.getCredential(userId);
+			credentialLoaded = true;
+		}
+		return credential;
+	}
+
+	/**
+	 * Whether this session passed a credential check recently enough that
+	 * it does not need to be repeated.
+	 */
+	public static boolean isVerified(HttpServletRequest request) {
+		Long verifiedUntil = (Long) request.getSession().getAttribute(
+				VERIFIED_UNTIL_ATTRIBUTE);
+		return verifiedUntil != null
+				&& verifiedUntil.longValue() > System.currentTimeMillis();
+	}
+
+	public static void setVerified(HttpServletRequest request) {
+		request.getSession().setAttribute(VERIFIED_UNTIL_ATTRIBUTE,
+				Long.valueOf(System.currentTimeMillis() + VERIFIED_MILLIS));
+	}
+
+	public static void clearVerified(HttpServletRequest request) {
+		HttpSession session = request.getSession();
+		session.removeAttribute(VERIFIED_UNTIL_ATTRIBUTE);
+	}
+}
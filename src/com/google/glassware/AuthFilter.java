@@ -15,6 +15,8 @@
  */
 package com.google.glassware;
 
+import com.google.api.client.auth.oauth2.Credential;
+
 import java.io.IOException;
 import java.util.logging.Logger;
 
@@ -66,15 +68,34 @@ public class AuthFilter implements Filter {
         return;
       }
 
+      // Is this the task queue or an admin page? If so skip check. web.xml
+      // only lets admins and the task queue itself reach these
+      if (httpRequest.getRequestURI().startsWith("/tasks/")
+          || httpRequest.getRequestURI().startsWith("/admin/")) {
+        filterChain.doFilter(request, response);
+        return;
+      }
+
       LOG.fine("Checking to see if anyone is logged in");
-      if (AuthUtil.getUserId(httpRequest) == null
-          || AuthUtil.getCredential(AuthUtil.getUserId(httpRequest)) == null
-          || AuthUtil.getCredential(AuthUtil.getUserId(httpRequest)).getAccessToken() == null) {
+      AuthContext authContext = AuthContext.get(httpRequest);
+      if (authContext.getUserId() == null) {
         // redirect to auth flow
         httpResponse.sendRedirect(WebUtil.buildUrl(httpRequest, "/oauth2callback"));
         return;
       }
 
+      // Only go to the credential store if the session hasn't been checked
+      // recently
+      if (!AuthContext.isVerified(httpRequest)) {
+        Credential credential = authContext.getCredential();
+        if (credential == null || credential.getAccessToken() == null) {
+          // redirect to auth flow
+          httpResponse.sendRedirect(WebUtil.buildUrl(httpRequest, "/oauth2callback"));
+          return;
+        }
+        AuthContext.setVerified(httpRequest);
+      }
+
       // Things checked out OK :)
       filterChain.doFilter(request, response);
     } else {
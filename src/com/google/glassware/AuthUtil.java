@@ -17,14 +17,16 @@ package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.extensions.appengine.http.UrlFetchTransport;
+import com.google.api.client.auth.oauth2.CredentialStoreRefreshListener;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.json.jackson.JacksonFactory;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.servlet.http.HttpServletRequest;
@@ -42,20 +44,33 @@ public class AuthUtil {
       + "https://www.googleapis.com/auth/userinfo.email "
       + "https://www.googleapis.com/auth/userinfo.profile";
 
+  private static AuthorizationCodeFlow authorizationCodeFlow;
+
   /**
-   * Creates and returns a new {@link AuthorizationCodeFlow} for this app.
+   * Returns the {@link AuthorizationCodeFlow} for this app. oauth.properties is
+   * only read the first time this is called.
    */
-  public static AuthorizationCodeFlow newAuthorizationCodeFlow() throws IOException {
-    FileInputStream authPropertiesStream = new FileInputStream("oauth.properties");
-    Properties authProperties = new Properties();
-    authProperties.load(authPropertiesStream);
+  public static synchronized AuthorizationCodeFlow getAuthorizationCodeFlow()
+      throws IOException {
+    if (authorizationCodeFlow == null) {
+      Properties authProperties = new Properties();
+      FileInputStream authPropertiesStream = new FileInputStream("oauth.properties");
+      try {
+        authProperties.load(authPropertiesStream);
+      } finally {
+        authPropertiesStream.close();
+      }
 
-    String clientId = authProperties.getProperty("client_id");
-    String clientSecret = authProperties.getProperty("client_secret");
+      String clientId = authProperties.getProperty("client_id");
+      String clientSecret = authProperties.getProperty("client_secret");
 
-    return new GoogleAuthorizationCodeFlow.Builder(new UrlFetchTransport(), new JacksonFactory(),
-        clientId, clientSecret, Collections.singleton(GLASS_SCOPE)).setAccessType("offline")
-        .setCredentialStore(new ListableAppEngineCredentialStore()).build();
+      authorizationCodeFlow =
+          new GoogleAuthorizationCodeFlow.Builder(MirrorClient.getHttpTransport(),
+              MirrorClient.getJsonFactory(), clientId, clientSecret,
+              Collections.singleton(GLASS_SCOPE)).setAccessType("offline")
+              .setCredentialStore(new ListableAppEngineCredentialStore()).build();
+    }
+    return authorizationCodeFlow;
   }
 
   /**
@@ -80,18 +95,76 @@ public class AuthUtil {
 
     // Remove their ID from the local session
     request.getSession().removeAttribute("userId");
+    AuthContext.clearVerified(request);
   }
 
+  /**
+   * Loads the user's credential, preferring the copy held by
+   * {@link CredentialCache}.
+   * 
+   * @return the credential or null if the user has none stored
+   */
   public static Credential getCredential(String userId) throws IOException {
     if (userId == null) {
       return null;
-    } else {
-      return AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
     }
+    Credential credential = CredentialCache.getLocal(userId);
+    if (credential == null) {
+      credential = getAuthorizationCodeFlow().loadCredential(userId);
+      if (credential != null) {
+        CredentialCache.putLocal(userId, credential);
+      }
+    }
+    return credential;
   }
 
   public static Credential getCredential(HttpServletRequest req) throws IOException {
-    return AuthUtil.newAuthorizationCodeFlow().loadCredential(getUserId(req));
+    return getCredential(getUserId(req));
+  }
+
+  /**
+   * Loads the credentials of many users at once. Users missing from
+   * {@link CredentialCache} are fetched with a single batch lookup rather than
+   * one lookup each.
+   * 
+   * @return credentials keyed by user ID; users without one are left out
+   */
+  public static Map<String, Credential> getCredentials(Collection<String> userIds)
+      throws IOException {
+    Map<String, Credential> credentials = new HashMap<String, Credential>();
+    Map<String, Credential> toLoad = new HashMap<String, Credential>();
+    for (String userId : userIds) {
+      Credential credential = CredentialCache.getLocal(userId);
+      if (credential != null) {
+        credentials.put(userId, credential);
+      } else {
+        toLoad.put(userId, newCredential(userId));
+      }
+    }
+
+    if (!toLoad.isEmpty()) {
+      for (String userId : new ListableAppEngineCredentialStore().loadAll(toLoad)) {
+        Credential credential = toLoad.get(userId);
+        CredentialCache.putLocal(userId, credential);
+        credentials.put(userId, credential);
+      }
+    }
+    return credentials;
+  }
+
+  /**
+   * Builds a blank credential for the user, set up the same way
+   * {@link AuthorizationCodeFlow#loadCredential} sets up the ones it loads.
+   */
+  private static Credential newCredential(String userId) throws IOException {
+    AuthorizationCodeFlow flow = getAuthorizationCodeFlow();
+    return new Credential.Builder(flow.getMethod()).setTransport(flow.getTransport())
+        .setJsonFactory(flow.getJsonFactory())
+        .setTokenServerEncodedUrl(flow.getTokenServerEncodedUrl())
+        .setClientAuthentication(flow.getClientAuthentication())
+        .setRequestInitializer(flow.getRequestInitializer())
+        .addRefreshListener(new CredentialStoreRefreshListener(userId, flow.getCredentialStore()))
+        .build();
   }
 
   public static List<String> getAllUserIds() {
@@ -0,0 +1,611 @@
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Sends a timeline item to every user. The work runs on the "broadcast" task
+ * queue: plan tasks page through the users and split each page into chunks
+ * that fit in one Mirror batch request, and one task per chunk sends that
+ * batch. queue.xml bounds how many chunks run at once.
+ */
+public class BroadcastEngine {
+	private static final Logger LOG = Logger.getLogger(BroadcastEngine.class
+			.getSimpleName());
+
+	static final String QUEUE_NAME = "broadcast";
+	static final String WORKER_PATH = "/tasks/broadcast";
+
+	/** Number of users sent to in a single Mirror batch request. */
+	static final int CHUNK_SIZE = 50;
+
+	/** Number of users planned by a single plan task. */
+	private static final int PLAN_PAGE_SIZE = 500;
+
+	/** Times a chunk is sent before its remaining recipients are given up. */
+	private static final int MAX_CHUNK_ATTEMPTS = 5;
+
+	/** Base delay before failed recipients are retried; grows per attempt. */
+	private static final long RETRY_DELAY_MILLIS = 30 * 1000;
+
+	/** How long a chunk task may hold a chunk; the task queue deadline. */
+	private static final long LEASE_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * How long after a retry's hold on its chunk runs out the retry task is
+	 * due, so a task the queue runs a little early still finds it free.
+	 */
+	private static final long RETRY_SLACK_MILLIS = 15 * 1000;
+
+	/** Most tasks the task queue accepts in a single add call. */
+	private static final int MAX_TASKS_PER_ADD = 100;
+
+	private static final String BROADCAST_KIND = "Broadcast";
+	private static final String CHUNK_KIND = "BroadcastChunk";
+
+	static final String STATUS_PLANNING = "PLANNING";
+	static final String STATUS_RUNNING = "RUNNING";
+	static final String STATUS_DONE = "DONE";
+	private static final String STATUS_PENDING = "PENDING";
+
+	/**
+	 * The recipients of one chunk's batch request, sorted by outcome.
+	 */
+	private static final class ChunkResult {
+		private final List<String> sent = new ArrayList<String>();
+		private final List<String> retry = new ArrayList<String>();
+		private final List<String> failed = new ArrayList<String>();
+	}
+
+	/**
+	 * Records the outcome of the insert for a single recipient.
+	 */
+	private static final class BatchCallback extends
+			JsonBatchCallback<TimelineItem> {
+		private final String userId;
+		private final ChunkResult result;
+
+		BatchCallback(String userId, ChunkResult result) {
+			this.userId = userId;
+			this.result = result;
+		}
+
+		@Override
+		public void onSuccess(TimelineItem item, HttpHeaders headers)
+				throws IOException {
+			result.sent.add(userId);
+		}
+
+		@Override
+		public void onFailure(GoogleJsonError error, HttpHeaders headers)
+				throws IOException {
+			LOG.info("Failed to insert item for " + userId + ": "
+					+ error.getMessage());
+			Metrics.increment("mirror-error:" + error.getCode());
+			if (isRetryable(error)) {
+				result.retry.add(userId);
+			} else {
+				result.failed.add(userId);
+			}
+		}
+	}
+
+	/**
+	 * How far a broadcast has got, summed over its chunks.
+	 */
+	public static class Progress {
+		private String status;
+		private long totalUsers;
+		private long totalChunks;
+		private long chunksDone;
+		private long success;
+		private long failure;
+		private double usersPerSecond;
+		private long etaSeconds = -1;
+
+		public String getStatus() {
+			return status;
+		}
+
+		public long getTotalUsers() {
+			return totalUsers;
+		}
+
+		public long getTotalChunks() {
+			return totalChunks;
+		}
+
+		public long getChunksDone() {
+			return chunksDone;
+		}
+
+		public long getSuccess() {
+			return success;
+		}
+
+		public long getFailure() {
+			return failure;
+		}
+
+		/** Recipients handled per second since the broadcast started. */
+		public double getUsersPerSecond() {
+			return usersPerSecond;
+		}
+
+		/** Estimated seconds until the broadcast is done, or -1 if unknown. */
+		public long getEtaSeconds() {
+			return etaSeconds;
+		}
+	}
+
+	/**
+	 * Records a new broadcast and queues the task that plans it.
+	 * 
+	 * @return the broadcast ID to pass to {@link #getProgress}
+	 */
+	public static long start(TimelineItem item) throws IOException {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Entity broadcast = new Entity(BROADCAST_KIND);
+		broadcast.setProperty("created", new Date());
+		broadcast.setProperty("status", STATUS_PLANNING);
+		broadcast.setUnindexedProperty("planStep", 0L);
+		broadcast.setUnindexedProperty("item", new Text(MirrorClient
+				.getJsonFactory().toString(item)));
+
+		// Only queue the plan task if the broadcast was actually saved
+		Transaction txn = datastore.beginTransaction();
+		try {
+			Key key = datastore.put(txn, broadcast);
+			getQueue().add(txn, newPlanTask(key.getId(), 0));
+			txn.commit();
+			LOG.info("Queued broadcast " + key.getId());
+			return key.getId();
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
+
+	/**
+	 * Plans the next page of users: splits it into chunks and queues one task
+	 * per chunk. The cursor of the following page is saved on the broadcast
+	 * together with the task that plans it, so planning picks up where it
+	 * left off if an instance goes away.
+	 * <p>
+	 * Each page is a numbered step, and the step is advanced in the same
+	 * transaction that queues the next plan task. Of two tasks planning the
+	 * same step (say one queued by {@link #resume} while the original chain
+	 * was still alive) only the first to commit carries on, so there is never
+	 * more than one plan chain.
+	 */
+	static void plan(long broadcastId, long step) {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Entity broadcast = getBroadcast(datastore, broadcastId);
+		if (broadcast == null
+				|| !STATUS_PLANNING.equals(broadcast.getProperty("status"))
+				|| getLong(broadcast, "planStep") != step) {
+			// Already planned by an earlier attempt of this task or by
+			// another chain
+			return;
+		}
+
+		ListableAppEngineCredentialStore.UserPage page = new ListableAppEngineCredentialStore()
+				.listUsers((String) broadcast.getProperty("planCursor"),
+						PLAN_PAGE_SIZE);
+		List<List<String>> chunks = Lists.partition(page.getUserIds(),
+				CHUNK_SIZE);
+		long plannedChunks = getLong(broadcast, "totalChunks");
+		LOG.info("Broadcast " + broadcastId + " planning "
+				+ page.getUserIds().size() + " users in " + chunks.size()
+				+ " chunks");
+
+		List<Key> chunkKeys = new ArrayList<Key>();
+		for (int i = 0; i < chunks.size(); i++) {
+			chunkKeys.add(KeyFactory.createKey(broadcast.getKey(), CHUNK_KIND,
+					plannedChunks + i + 1));
+		}
+		// A retried plan task must not reset chunks that already ran
+		Map<Key, Entity> existing = datastore.get(chunkKeys);
+
+		List<Entity> chunkEntities = new ArrayList<Entity>();
+		List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+		for (int i = 0; i < chunks.size(); i++) {
+			Key chunkKey = chunkKeys.get(i);
+			if (!existing.containsKey(chunkKey)) {
+				Entity chunk = new Entity(chunkKey);
+				chunk.setProperty("status", STATUS_PENDING);
+				chunk.setUnindexedProperty("userIds", new ArrayList<String>(
+						chunks.get(i)));
+				chunk.setUnindexedProperty("success", 0L);
+				chunk.setUnindexedProperty("failure", 0L);
+				chunkEntities.add(chunk);
+			}
+			// Named so a retried plan task cannot queue a chunk twice
+			tasks.add(newTask("chunk", broadcastId).param("chunk",
+					Long.toString(chunkKey.getId())).taskName(
+					"broadcast-" + broadcastId + "-chunk-" + chunkKey.getId()));
+		}
+		datastore.put(chunkEntities);
+		for (List<TaskOptions> group : Lists.partition(tasks,
+				MAX_TASKS_PER_ADD)) {
+			try {
+				getQueue().add(group);
+			} catch (TaskAlreadyExistsException e) {
+				// The rest of the group was still added
+				LOG.info("Some chunk tasks were already queued: " + e);
+			}
+		}
+
+		broadcast.setUnindexedProperty("totalUsers",
+				getLong(broadcast, "totalUsers") + page.getUserIds().size());
+		broadcast.setUnindexedProperty("totalChunks",
+				plannedChunks + chunks.size());
+		broadcast.setUnindexedProperty("planCursor", page.getCursor());
+		broadcast.setUnindexedProperty("planStep", step + 1);
+		if (page.getCursor() == null) {
+			broadcast.setProperty("status", STATUS_RUNNING);
+		}
+
+		Transaction txn = datastore.beginTransaction();
+		try {
+			Entity current = datastore.get(txn, broadcast.getKey());
+			if (getLong(current, "planStep") != step) {
+				LOG.info("Broadcast " + broadcastId + " step " + step
+						+ " was planned by another task");
+				return;
+			}
+			datastore.put(txn, broadcast);
+			if (page.getCursor() != null) {
+				getQueue().add(txn, newPlanTask(broadcastId, step + 1));
+			}
+			txn.commit();
+		} catch (EntityNotFoundException e) {
+			LOG.warning("Broadcast " + broadcastId + " went away while planning");
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
+
+	/**
+	 * Sends the broadcast item to the outstanding recipients of one chunk in
+	 * a single batch request. Recipients that fail with a retryable error are
+	 * saved on the chunk and tried again by a later task; everyone else is
+	 * checkpointed so they are never sent the card twice. That includes a
+	 * batch request that fails part-way: whoever the callbacks already heard
+	 * about is recorded before the failure is passed on to the task queue.
+	 */
+	static void runChunk(long broadcastId, long chunkId) throws IOException {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Key broadcastKey = KeyFactory.createKey(BROADCAST_KIND, broadcastId);
+		Entity chunk = leaseChunk(datastore,
+				KeyFactory.createKey(broadcastKey, CHUNK_KIND, chunkId));
+		if (chunk == null) {
+			return;
+		}
+		Entity broadcast = getBroadcast(datastore, broadcastId);
+		if (broadcast == null) {
+			// Nothing left to send it for
+			LOG.warning("Deleting chunk " + chunkId + " of missing broadcast "
+					+ broadcastId);
+			datastore.delete(chunk.getKey());
+			return;
+		}
+
+		TimelineItem item = MirrorClient.getJsonFactory().fromString(
+				((Text) broadcast.getProperty("item")).getValue(),
+				TimelineItem.class);
+
+		List<String> userIds = getUserIds(chunk);
+		Map<String, Credential> credentials = AuthUtil
+				.getCredentials(userIds);
+		BatchRequest batch = MirrorClient.getMirror(null, null).batch();
+		ChunkResult result = new ChunkResult();
+		for (String userId : userIds) {
+			Credential credential = credentials.get(userId);
+			if (credential == null) {
+				result.failed.add(userId);
+				continue;
+			}
+			MirrorClient.getMirror(credential, userId).timeline().insert(item)
+					.queue(batch, new BatchCallback(userId, result));
+		}
+		if (batch.size() > 0) {
+			boolean executed = false;
+			try {
+				batch.execute();
+				executed = true;
+			} finally {
+				if (!executed) {
+					savePartialProgress(datastore, chunk, userIds, result);
+				}
+			}
+		}
+
+		Metrics.add("broadcast:sent", result.sent.size());
+		Metrics.add("broadcast:failed", result.failed.size());
+		Metrics.add("broadcast:retried", result.retry.size());
+
+		long attempts = getLong(chunk, "attempts") + 1;
+		long failure = getLong(chunk, "failure") + result.failed.size();
+		chunk.setUnindexedProperty("attempts", attempts);
+		chunk.setUnindexedProperty("success", getLong(chunk, "success")
+				+ result.sent.size());
+		chunk.setUnindexedProperty("completed", new Date());
+		chunk.removeProperty("leaseUntil");
+
+		if (result.retry.isEmpty() || attempts >= MAX_CHUNK_ATTEMPTS) {
+			// Anyone left over is given up on
+			chunk.setProperty("status", STATUS_DONE);
+			chunk.setUnindexedProperty("userIds", result.retry);
+			chunk.setUnindexedProperty("failure",
+					failure + result.retry.size());
+			datastore.put(chunk);
+			return;
+		}
+
+		LOG.info("Broadcast " + broadcastId + " chunk " + chunkId
+				+ " retrying " + result.retry.size() + " recipients");
+		chunk.setUnindexedProperty("userIds", result.retry);
+		chunk.setUnindexedProperty("failure", failure);
+		// The delayed task holds the chunk until shortly before it is due, so
+		// resume leaves it alone
+		long delayMillis = RETRY_DELAY_MILLIS * attempts;
+		chunk.setUnindexedProperty("leaseUntil", System.currentTimeMillis()
+				+ delayMillis);
+		Transaction txn = datastore.beginTransaction();
+		try {
+			datastore.put(txn, chunk);
+			getQueue().add(
+					txn,
+					newTask("chunk", broadcastId)
+							.param("chunk", Long.toString(chunkId))
+							.countdownMillis(delayMillis + RETRY_SLACK_MILLIS));
+			txn.commit();
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
+
+	/**
+	 * Checkpoints a chunk whose batch request failed part-way. Only the
+	 * recipients without a result stay on the chunk, so the task queue's
+	 * retry does not send the card to anyone twice.
+	 */
+	private static void savePartialProgress(DatastoreService datastore,
+			Entity chunk, List<String> userIds, ChunkResult result) {
+		List<String> remaining = new ArrayList<String>(userIds);
+		remaining.removeAll(result.sent);
+		remaining.removeAll(result.failed);
+		LOG.warning("Batch for " + chunk.getKey() + " failed with "
+				+ remaining.size() + " recipients outstanding");
+		Metrics.add("broadcast:sent", result.sent.size());
+		Metrics.add("broadcast:failed", result.failed.size());
+
+		chunk.setUnindexedProperty("userIds", remaining);
+		chunk.setUnindexedProperty("success", getLong(chunk, "success")
+				+ result.sent.size());
+		chunk.setUnindexedProperty("failure", getLong(chunk, "failure")
+				+ result.failed.size());
+		chunk.removeProperty("leaseUntil");
+		datastore.put(chunk);
+	}
+
+	/**
+	 * Marks a pending chunk as being worked on, so a duplicate task cannot
+	 * send it at the same time.
+	 * 
+	 * @return the chunk, or null if it is already done or does not exist
+	 * @throws IllegalStateException
+	 *             if another task holds the chunk; the task queue retries
+	 *             later
+	 */
+	private static Entity leaseChunk(DatastoreService datastore, Key chunkKey) {
+		Transaction txn = datastore.beginTransaction();
+		try {
+			Entity chunk;
+			try {
+				chunk = datastore.get(txn, chunkKey);
+			} catch (EntityNotFoundException e) {
+				LOG.warning("No broadcast chunk " + chunkKey);
+				return null;
+			}
+			if (STATUS_DONE.equals(chunk.getProperty("status"))) {
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			if (getLong(chunk, "leaseUntil") > now) {
+				throw new IllegalStateException("Broadcast chunk " + chunkKey
+						+ " is already being sent");
+			}
+			chunk.setUnindexedProperty("leaseUntil", now + LEASE_MILLIS);
+			datastore.put(txn, chunk);
+			txn.commit();
+			return chunk;
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
+
+	/**
+	 * Re-queues whatever is left of a broadcast: the plan task if it was still
+	 * planning, and every chunk that is not done and not held by a running or
+	 * delayed task. Used when a broadcast's tasks were lost or gave up.
+	 * Recipients who already got the card are not sent it again, and a plan
+	 * chain that is still alive is not doubled (see {@link #plan}).
+	 * 
+	 * @return false if there is no such broadcast
+	 */
+	public static boolean resume(long broadcastId) {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Entity broadcast = getBroadcast(datastore, broadcastId);
+		if (broadcast == null) {
+			return false;
+		}
+		List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+		if (STATUS_PLANNING.equals(broadcast.getProperty("status"))) {
+			tasks.add(newPlanTask(broadcastId, getLong(broadcast, "planStep")));
+		}
+		Query pendingQuery = new Query(CHUNK_KIND, broadcast.getKey())
+				.setFilter(new FilterPredicate("status", FilterOperator.EQUAL,
+						STATUS_PENDING));
+		long now = System.currentTimeMillis();
+		for (Entity chunk : datastore.prepare(pendingQuery).asIterable()) {
+			if (getLong(chunk, "leaseUntil") > now) {
+				continue;
+			}
+			tasks.add(newTask("chunk", broadcastId).param("chunk",
+					Long.toString(chunk.getKey().getId())));
+		}
+		for (List<TaskOptions> group : Lists.partition(tasks,
+				MAX_TASKS_PER_ADD)) {
+			getQueue().add(group);
+		}
+		LOG.info("Resumed broadcast " + broadcastId + " with " + tasks.size()
+				+ " tasks");
+		return true;
+	}
+
+	/**
+	 * Returns the progress of a broadcast, or null if there is no such
+	 * broadcast.
+	 */
+	public static Progress getProgress(long broadcastId) {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Entity broadcast = getBroadcast(datastore, broadcastId);
+		if (broadcast == null) {
+			return null;
+		}
+		Progress progress = new Progress();
+		progress.status = (String) broadcast.getProperty("status");
+		progress.totalUsers = getLong(broadcast, "totalUsers");
+		progress.totalChunks = getLong(broadcast, "totalChunks");
+
+		long lastCompleted = 0;
+		Query chunkQuery = new Query(CHUNK_KIND, broadcast.getKey());
+		for (Entity chunk : datastore.prepare(chunkQuery).asIterable()) {
+			if (STATUS_DONE.equals(chunk.getProperty("status"))) {
+				progress.chunksDone++;
+			}
+			// Partly sent chunks count too
+			progress.success += getLong(chunk, "success");
+			progress.failure += getLong(chunk, "failure");
+			Date completed = (Date) chunk.getProperty("completed");
+			if (completed != null) {
+				lastCompleted = Math.max(lastCompleted, completed.getTime());
+			}
+		}
+
+		boolean done = STATUS_RUNNING.equals(progress.status)
+				&& progress.chunksDone == progress.totalChunks;
+		long handled = progress.success + progress.failure;
+		long end = done ? lastCompleted : System.currentTimeMillis();
+		long elapsedMillis = end
+				- ((Date) broadcast.getProperty("created")).getTime();
+		if (elapsedMillis > 0 && handled > 0) {
+			progress.usersPerSecond = handled * 1000.0 / elapsedMillis;
+		}
+		if (done) {
+			progress.status = STATUS_DONE;
+			progress.etaSeconds = 0;
+		} else if (progress.usersPerSecond > 0) {
+			progress.etaSeconds = (long) ((progress.totalUsers - handled)
+					/ progress.usersPerSecond);
+		}
+		return progress;
+	}
+
+	private static Entity getBroadcast(DatastoreService datastore,
+			long broadcastId) {
+		try {
+			return datastore.get(KeyFactory.createKey(BROADCAST_KIND,
+					broadcastId));
+		} catch (EntityNotFoundException e) {
+			LOG.warning("No broadcast with ID " + broadcastId);
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> getUserIds(Entity chunk) {
+		// The datastore stores an empty list as null
+		List<String> userIds = (List<String>) chunk.getProperty("userIds");
+		return userIds == null ? new ArrayList<String>() : userIds;
+	}
+
+	/**
+	 * Whether a failed insert is worth trying again: rate limiting and
+	 * server errors are, anything else will fail the same way next time.
+	 */
+	private static boolean isRetryable(GoogleJsonError error) {
+		if (error.getCode() == 429 || error.getCode() >= 500) {
+			return true;
+		}
+		if (error.getErrors() != null) {
+			for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+				if ("rateLimitExceeded".equals(info.getReason())
+						|| "userRateLimitExceeded".equals(info.getReason())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static long getLong(Entity entity, String property) {
+		Long value = (Long) entity.getProperty(property);
+		return value == null ? 0 : value.longValue();
+	}
+
+	private static Queue getQueue() {
+		return QueueFactory.getQueue(QUEUE_NAME);
+	}
+
+	private static TaskOptions newTask(String action, long broadcastId) {
+		return TaskOptions.Builder.withUrl(WORKER_PATH)
+				.param("action", action)
+				.param("broadcastId", Long.toString(broadcastId));
+	}
+
+	private static TaskOptions newPlanTask(long broadcastId, long step) {
+		return newTask("plan", broadcastId).param("step", Long.toString(step));
+	}
+}
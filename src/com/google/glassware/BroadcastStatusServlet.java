@@ -0,0 +1,46 @@
+package com.google.glassware;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports how far a broadcast started from index.jsp has got.
+ */
+@SuppressWarnings("serial")
+public class BroadcastStatusServlet extends HttpServlet {
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse res)
+			throws IOException {
+		String id = req.getParameter("id");
+		BroadcastEngine.Progress progress = null;
+		try {
+			progress = id == null ? null : BroadcastEngine.getProgress(Long
+					.parseLong(id));
+		} catch (NumberFormatException e) {
+			// treated as an unknown broadcast below
+		}
+		if (progress == null) {
+			res.sendError(404);
+			return;
+		}
+
+		res.setContentType("text/plain");
+		Writer writer = res.getWriter();
+		writer.append("status: " + progress.getStatus() + "\n");
+		writer.append("users: " + progress.getTotalUsers() + "\n");
+		writer.append("chunks: " + progress.getChunksDone() + " of "
+				+ progress.getTotalChunks() + "\n");
+		writer.append("sent: " + progress.getSuccess() + "\n");
+		writer.append("failed: " + progress.getFailure() + "\n");
+		writer.append(String.format("throughput: %.1f users/s\n",
+				progress.getUsersPerSecond()));
+		if (progress.getEtaSeconds() >= 0) {
+			writer.append("eta: " + progress.getEtaSeconds() + "s\n");
+		}
+		writer.close();
+	}
+}
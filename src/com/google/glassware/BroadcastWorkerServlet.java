@@ -0,0 +1,38 @@
+package com.google.glassware;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the task queue work queued by {@link BroadcastEngine}. Throwing makes
+ * the task queue retry the task.
+ */
+@SuppressWarnings("serial")
+public class BroadcastWorkerServlet extends HttpServlet {
+	private static final Logger LOG = Logger
+			.getLogger(BroadcastWorkerServlet.class.getSimpleName());
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse res)
+			throws IOException {
+		String action = req.getParameter("action");
+		long broadcastId = Long.parseLong(req.getParameter("broadcastId"));
+
+		if ("plan".equals(action)) {
+			// Tasks queued before plan steps existed have no step
+			String step = req.getParameter("step");
+			BroadcastEngine.plan(broadcastId,
+					step == null ? 0 : Long.parseLong(step));
+		} else if ("chunk".equals(action)) {
+			BroadcastEngine.runChunk(broadcastId,
+					Long.parseLong(req.getParameter("chunk")));
+		} else {
+			// Don't fail, a retry would not help
+			LOG.warning("Unknown broadcast action " + action);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two tier cache in front of {@link ListableAppEngineCredentialStore}. Live
+ * {@link Credential} objects are kept in process, and access tokens are kept
+ * in memcache so other instances can skip the datastore as well.
+ * <p>
+ * Refresh tokens never go to memcache. Each instance keeps the ones it has
+ * read from the datastore, and a memcache entry is only used when this
+ * instance holds the refresh token that goes with it; otherwise the
+ * credential is read from the datastore. Every credential handed out can
+ * therefore refresh itself.
+ * <p>
+ * Entries are served until their access token expires. Near expiry, or on a
+ * 401, the credential refreshes itself and the store writes the new token
+ * back through both tiers, so a refresh renews the entries rather than
+ * leaving them to miss.
+ */
+public class CredentialCache {
+	private static final String MEMCACHE_PREFIX = "credential:";
+
+	private static final Cache<String, Credential> LOCAL = CacheBuilder
+			.newBuilder().maximumSize(1000)
+			.expireAfterWrite(10, TimeUnit.MINUTES).build();
+
+	/** Refresh tokens by user ID, read from the datastore by this instance. */
+	private static final Cache<String, String> REFRESH_TOKENS = CacheBuilder
+			.newBuilder().maximumSize(10000).build();
+
+	private static final MemcacheService MEMCACHE = MemcacheServiceFactory
+			.getMemcacheService();
+
+	/**
+	 * The token fields of a credential. Only the access token, its expiry and
+	 * a hash identifying the refresh token are stored in memcache; the
+	 * refresh token itself stays in the process.
+	 */
+	@SuppressWarnings("serial")
+	public static class StoredCredential implements Serializable {
+		private final String accessToken;
+		private final transient String refreshToken;
+		private final int refreshTokenHash;
+		private final Long expirationTimeMillis;
+
+		StoredCredential(String accessToken, String refreshToken,
+				Long expirationTimeMillis) {
+			this(accessToken, refreshToken, hash(refreshToken),
+					expirationTimeMillis);
+		}
+
+		private StoredCredential(String accessToken, String refreshToken,
+				int refreshTokenHash, Long expirationTimeMillis) {
+			this.accessToken = accessToken;
+			this.refreshToken = refreshToken;
+			this.refreshTokenHash = refreshTokenHash;
+			this.expirationTimeMillis = expirationTimeMillis;
+		}
+
+		/**
+		 * Returns a copy with the refresh token this instance holds for the
+		 * user, or null if it holds none or a different one.
+		 */
+		private StoredCredential withLocalRefreshToken(String userId) {
+			String localRefreshToken = REFRESH_TOKENS.getIfPresent(userId);
+			if (localRefreshToken == null
+					|| hash(localRefreshToken) != refreshTokenHash) {
+				return null;
+			}
+			return new StoredCredential(accessToken, localRefreshToken,
+					refreshTokenHash, expirationTimeMillis);
+		}
+
+		public void copyTo(Credential credential) {
+			credential.setAccessToken(accessToken);
+			credential.setRefreshToken(refreshToken);
+			credential.setExpirationTimeMilliseconds(expirationTimeMillis);
+		}
+
+		/**
+		 * Seconds until the access token expires, or 0 if it should not be
+		 * cached.
+		 */
+		private int memcacheSeconds() {
+			if (expirationTimeMillis == null || refreshToken == null) {
+				return 0;
+			}
+			long seconds = (expirationTimeMillis - System.currentTimeMillis()) / 1000;
+			return seconds > 0 ? (int) seconds : 0;
+		}
+
+		private static int hash(String refreshToken) {
+			return refreshToken != null ? refreshToken.hashCode() : 0;
+		}
+	}
+
+	/**
+	 * Returns the in-process credential for the user, or null if there is
+	 * none. It may hold an expired access token, which it refreshes itself
+	 * on first use.
+	 */
+	public static Credential getLocal(String userId) {
+		return LOCAL.getIfPresent(userId);
+	}
+
+	public static void putLocal(String userId, Credential credential) {
+		LOCAL.put(userId, credential);
+	}
+
+	/**
+	 * Returns the memcached token fields for the user with the refresh token
+	 * held by this instance, or null on a miss or if this instance does not
+	 * hold the refresh token.
+	 */
+	public static StoredCredential getShared(String userId) {
+		StoredCredential stored = (StoredCredential) MEMCACHE
+				.get(MEMCACHE_PREFIX + userId);
+		return stored != null ? stored.withLocalRefreshToken(userId) : null;
+	}
+
+	/**
+	 * Bulk version of {@link #getShared}, in a single memcache call. Users
+	 * that miss are left out.
+	 */
+	public static Map<String, StoredCredential> getAllShared(
+			Collection<String> userIds) {
+		Map<String, StoredCredential> found = new HashMap<String, StoredCredential>();
+		if (userIds.isEmpty()) {
+			return found;
+		}
+		List<String> keys = new ArrayList<String>(userIds.size());
+		for (String userId : userIds) {
+			keys.add(MEMCACHE_PREFIX + userId);
+		}
+		for (Map.Entry<String, Object> entry : MEMCACHE.getAll(keys)
+				.entrySet()) {
+			String userId = entry.getKey().substring(MEMCACHE_PREFIX.length());
+			StoredCredential stored = ((StoredCredential) entry.getValue())
+					.withLocalRefreshToken(userId);
+			if (stored != null) {
+				found.put(userId, stored);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Caches the token fields until the access token expires, keeping the
+	 * refresh token in this instance only.
+	 */
+	public static void putShared(String userId, StoredCredential stored) {
+		if (stored.refreshToken != null) {
+			REFRESH_TOKENS.put(userId, stored.refreshToken);
+		}
+		int seconds = stored.memcacheSeconds();
+		if (seconds > 0) {
+			MEMCACHE.put(MEMCACHE_PREFIX + userId, stored,
+					Expiration.byDeltaSeconds(seconds));
+		}
+	}
+
+	public static void putAllShared(Map<String, StoredCredential> stored) {
+		// Entries expire at different times, so they are put one expiry at a
+		// time, rounded down to the minute so that users whose tokens were
+		// refreshed around the same time share a call
+		Map<Integer, Map<String, StoredCredential>> byExpiry = new HashMap<Integer, Map<String, StoredCredential>>();
+		for (Map.Entry<String, StoredCredential> entry : stored.entrySet()) {
+			if (entry.getValue().refreshToken != null) {
+				REFRESH_TOKENS.put(entry.getKey(), entry.getValue().refreshToken);
+			}
+			int seconds = entry.getValue().memcacheSeconds();
+			if (seconds <= 0) {
+				continue;
+			}
+			Integer expiry = seconds / 60 * 60;
+			Map<String, StoredCredential> values = byExpiry.get(expiry);
+			if (values == null) {
+				values = new HashMap<String, StoredCredential>();
+				byExpiry.put(expiry, values);
+			}
+			values.put(MEMCACHE_PREFIX + entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<Integer, Map<String, StoredCredential>> group : byExpiry
+				.entrySet()) {
+			if (group.getKey() > 0) {
+				MEMCACHE.putAll(group.getValue(),
+						Expiration.byDeltaSeconds(group.getKey()));
+			}
+		}
+	}
+
+	/**
+	 * Writes a newly stored or refreshed credential through both tiers, so
+	 * the next load finds the new token instead of missing.
+	 */
+	public static void update(String userId, Credential credential) {
+		LOCAL.put(userId, credential);
+		putShared(userId, new StoredCredential(credential.getAccessToken(),
+				credential.getRefreshToken(),
+				credential.getExpirationTimeMilliseconds()));
+	}
+
+	/**
+	 * Drops the user from both tiers. Called when the stored credential is
+	 * deleted.
+	 */
+	public static void invalidate(String userId) {
+		LOCAL.invalidate(userId);
+		REFRESH_TOKENS.invalidate(userId);
+		MEMCACHE.delete(MEMCACHE_PREFIX + userId);
+	}
+}
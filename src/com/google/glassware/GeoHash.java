@@ -0,0 +1,50 @@
+package com.google.glassware;
+
+/**
+ * Encodes coordinates as geohashes. Points that share a geohash prefix are
+ * close together, which makes a prefix a handy key for a region.
+ */
+public class GeoHash {
+	private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+	/**
+	 * Returns the geohash of the point with the given number of characters.
+	 */
+	public static String encode(double latitude, double longitude,
+			int precision) {
+		double minLatitude = -90, maxLatitude = 90;
+		double minLongitude = -180, maxLongitude = 180;
+		StringBuilder hash = new StringBuilder(precision);
+		boolean isLongitudeBit = true;
+		int bit = 0;
+		int character = 0;
+		while (hash.length() < precision) {
+			if (isLongitudeBit) {
+				double mid = (minLongitude + maxLongitude) / 2;
+				if (longitude >= mid) {
+					character |= 1 << (4 - bit);
+					minLongitude = mid;
+				} else {
+					maxLongitude = mid;
+				}
+			} else {
+				double mid = (minLatitude + maxLatitude) / 2;
+				if (latitude >= mid) {
+					character |= 1 << (4 - bit);
+					minLatitude = mid;
+				} else {
+					maxLatitude = mid;
+				}
+			}
+			isLongitudeBit = !isLongitudeBit;
+			if (bit < 4) {
+				bit++;
+			} else {
+				hash.append(BASE32.charAt(character));
+				bit = 0;
+				character = 0;
+			}
+		}
+		return hash.toString();
+	}
+}
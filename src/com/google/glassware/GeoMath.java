@@ -0,0 +1,41 @@
+package com.google.glassware;
+
+/**
+ * Distance math on plain doubles, so measuring allocates nothing.
+ */
+public class GeoMath {
+	/** Mean radius of the earth, the same one simplelatlng uses. */
+	static final double EARTH_RADIUS_MILES = 6371.009 / 1.609344;
+
+	/** Length of one degree of latitude. */
+	static final double MILES_PER_DEGREE_LATITUDE = Math.PI * EARTH_RADIUS_MILES / 180;
+
+	/**
+	 * Great circle distance between two points in miles, by the haversine
+	 * formula.
+	 */
+	public static double haversineMiles(double latitude1, double longitude1,
+			double latitude2, double longitude2) {
+		double sinHalfLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		double sinHalfLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		double a = sinHalfLatitude * sinHalfLatitude
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+				* sinHalfLongitude * sinHalfLongitude;
+		return 2 * EARTH_RADIUS_MILES * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	/**
+	 * Degrees of latitude spanned by the given distance.
+	 */
+	public static double latitudeDegrees(double miles) {
+		return miles / MILES_PER_DEGREE_LATITUDE;
+	}
+
+	/**
+	 * Degrees of longitude spanned by the given distance at the given
+	 * latitude. Capped near the poles, where it would grow without bound.
+	 */
+	public static double longitudeDegrees(double miles, double latitude) {
+		return latitudeDegrees(miles) / Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+	}
+}
@@ -0,0 +1,176 @@
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Location;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An in-memory grid of location tags. Coordinates are kept in columnar
+ * double arrays sorted by grid cell, and a small open addressing table maps
+ * each cell to its run of entries. Finding the tag around a point only
+ * looks at the cells near it, rejects most of their tags with a bounding
+ * box test, and allocates nothing.
+ */
+public class GeofenceIndex {
+	/** Cell size; about 0.7 miles north to south. */
+	private static final double CELL_DEGREES = 0.01;
+
+	/** Cells around the globe, so cell columns wrap at the antimeridian. */
+	private static final int LONGITUDE_CELLS = (int) Math.round(360 / CELL_DEGREES);
+
+	private final double radiusMiles;
+
+	// Tags sorted by cell, one column per field
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final LocationTag[] tags;
+
+	// Cell key -> run of tags in the columns above; a count of 0 marks an
+	// empty slot
+	private final long[] slotCells;
+	private final int[] slotStarts;
+	private final int[] slotCounts;
+	private final int slotMask;
+
+	/**
+	 * @param tagList
+	 *            the tags to index
+	 * @param radiusMiles
+	 *            how close a point has to be to a tag to be inside it
+	 */
+	public GeofenceIndex(List<LocationTag> tagList, double radiusMiles) {
+		this.radiusMiles = radiusMiles;
+		int size = tagList.size();
+		final long[] cellKeys = new long[size];
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			Location location = tagList.get(i).getLocation();
+			cellKeys[i] = cellKey(cellIndex(location.getLatitude()),
+					wrapLongitudeIndex(cellIndex(location.getLongitude())));
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long cellA = cellKeys[a];
+				long cellB = cellKeys[b];
+				return cellA < cellB ? -1 : (cellA > cellB ? 1 : 0);
+			}
+		});
+
+		latitudes = new double[size];
+		longitudes = new double[size];
+		tags = new LocationTag[size];
+		int cellCount = 0;
+		for (int i = 0; i < size; i++) {
+			LocationTag tag = tagList.get(order[i]);
+			latitudes[i] = tag.getLocation().getLatitude();
+			longitudes[i] = tag.getLocation().getLongitude();
+			tags[i] = tag;
+			if (i == 0 || cellKeys[order[i]] != cellKeys[order[i - 1]]) {
+				cellCount++;
+			}
+		}
+
+		// Keep the table at most half full
+		int slots = Integer.highestOneBit(Math.max(cellCount, 1) * 2) * 2;
+		slotCells = new long[slots];
+		slotStarts = new int[slots];
+		slotCounts = new int[slots];
+		slotMask = slots - 1;
+		for (int i = 0; i < size; i++) {
+			long cell = cellKeys[order[i]];
+			int slot = findSlot(cell);
+			if (slotCounts[slot] == 0) {
+				slotCells[slot] = cell;
+				slotStarts[slot] = i;
+			}
+			slotCounts[slot]++;
+		}
+	}
+
+	/**
+	 * Returns the closest tag the location is inside of, or null if it is
+	 * not inside any.
+	 */
+	public LocationTag find(Location location) {
+		return find(location.getLatitude(), location.getLongitude());
+	}
+
+	public LocationTag find(double latitude, double longitude) {
+		return find(latitude, longitude, radiusMiles);
+	}
+
+	/**
+	 * Returns the closest tag within the given radius of the point, or null
+	 * if there is none.
+	 */
+	public LocationTag find(double latitude, double longitude, double radiusMiles) {
+		if (tags.length == 0) {
+			return null;
+		}
+		double latitudeDelta = GeoMath.latitudeDegrees(radiusMiles);
+		double longitudeDelta = GeoMath.longitudeDegrees(radiusMiles, latitude);
+		int latSpan = (int) Math.ceil(latitudeDelta / CELL_DEGREES);
+		int lonSpan = (int) Math.ceil(longitudeDelta / CELL_DEGREES);
+
+		int latIndex = cellIndex(latitude);
+		int lonIndex = cellIndex(longitude);
+		int closest = -1;
+		double closestMiles = radiusMiles;
+		for (int i = latIndex - latSpan; i <= latIndex + latSpan; i++) {
+			for (int j = lonIndex - lonSpan; j <= lonIndex + lonSpan; j++) {
+				int slot = findSlot(cellKey(i, wrapLongitudeIndex(j)));
+				int end = slotStarts[slot] + slotCounts[slot];
+				for (int k = slotStarts[slot]; k < end; k++) {
+					// Bounding box first; it is much cheaper than haversine
+					double lonDistance = Math.abs(longitudes[k] - longitude);
+					if (lonDistance > 180) {
+						// The other way round, across the antimeridian
+						lonDistance = 360 - lonDistance;
+					}
+					if (Math.abs(latitudes[k] - latitude) > latitudeDelta || lonDistance > longitudeDelta) {
+						continue;
+					}
+					double miles = GeoMath.haversineMiles(latitude, longitude, latitudes[k], longitudes[k]);
+					if (miles < closestMiles) {
+						closest = k;
+						closestMiles = miles;
+					}
+				}
+			}
+		}
+		return closest == -1 ? null : tags[closest];
+	}
+
+	/**
+	 * Returns the slot holding the cell, or the empty slot it would go in.
+	 */
+	private int findSlot(long cell) {
+		int slot = (int) (cell ^ (cell >>> 29)) * 0x9E3779B1 & slotMask;
+		while (slotCounts[slot] != 0 && slotCells[slot] != cell) {
+			slot = (slot + 1) & slotMask;
+		}
+		return slot;
+	}
+
+	private static int cellIndex(double degrees) {
+		return (int) Math.floor(degrees / CELL_DEGREES);
+	}
+
+	/**
+	 * Maps a longitude cell index that ran past +/-180 degrees back onto the
+	 * globe.
+	 */
+	private static int wrapLongitudeIndex(int lonIndex) {
+		int half = LONGITUDE_CELLS / 2;
+		int wrapped = (lonIndex + half) % LONGITUDE_CELLS;
+		return (wrapped < 0 ? wrapped + LONGITUDE_CELLS : wrapped) - half;
+	}
+
+	private static long cellKey(int latIndex, int lonIndex) {
+		return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+	}
+}
@@ -0,0 +1,291 @@
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Location;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Tracks which tags a user is at, so arriving is reported once rather than on
+ * every location ping. A tag is entered once the user has been within
+ * {@link #ENTER_RADIUS_MILES} of it for {@link #MIN_DWELL_MILLIS}, and left
+ * once they move beyond {@link #EXIT_RADIUS_MILES}; the gap between the two
+ * radii keeps GPS jitter at the edge from flapping in and out. The state is
+ * kept in one entity per user, updated in a transaction, and tags are told
+ * apart by {@link LocationTag#getId()}, so a user tag and a point of
+ * interest with the same name are tracked separately.
+ * <p>
+ * An arrival stays pending until the caller has told the user and calls
+ * {@link #announced}. A retried task reports the same pending arrival again,
+ * and a ping handled twice finds it already announced, so each arrival is
+ * reported once.
+ */
+public class GeofenceTracker {
+	private static final Logger LOG = Logger.getLogger(GeofenceTracker.class.getSimpleName());
+
+	private static final String KIND = GeofenceTracker.class.getName();
+
+	static final double ENTER_RADIUS_MILES = LocationUtil.TAG_RADIUS_MILES;
+	static final double EXIT_RADIUS_MILES = 0.15;
+	static final long MIN_DWELL_MILLIS = 2 * 60 * 1000;
+
+	private static final String STATE_ENTERING = "ENTERING";
+	private static final String STATE_INSIDE = "INSIDE";
+
+	private static final int UPDATE_ATTEMPTS = 3;
+
+	/**
+	 * One tag the user is at or arriving at.
+	 */
+	private static class TagState {
+		private String name;
+		private String state;
+		private long since;
+		private double latitude;
+		private double longitude;
+		private boolean announced;
+	}
+
+	/**
+	 * An arrival at a tag that the user has not been told about yet.
+	 */
+	public static class Arrival {
+		private final String tagId;
+		private final String tag;
+		private final long since;
+
+		private Arrival(String tagId, String tag, long since) {
+			this.tagId = tagId;
+			this.tag = tag;
+			this.since = since;
+		}
+
+		public String getTag() {
+			return tag;
+		}
+
+		/**
+		 * Identifies this arrival, as opposed to an earlier or later visit to
+		 * the same tag.
+		 */
+		public String getId() {
+			return tagId + "@" + since;
+		}
+	}
+
+	/**
+	 * Moves the user's tag states along for a new location.
+	 * 
+	 * @param previous
+	 *            the location before this one, or null if it is not known
+	 * @return the arrival the user has not been told about yet, or null if
+	 *         there is none
+	 */
+	public static Arrival update(String userId, Location previous, Location current) {
+		// Looked up outside the transaction: the indexes are not in the
+		// user's entity group
+		LocationTag nearest = findNearest(userId, current, ENTER_RADIUS_MILES);
+
+		// Away from every tag both then and now; the last update already
+		// cleared any state, so there is nothing to read
+		if (nearest == null && previous != null && findNearest(userId, previous, EXIT_RADIUS_MILES) == null) {
+			return null;
+		}
+
+		Key key = KeyFactory.createKey(KIND, userId);
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		for (int attempt = 1;; attempt++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity entity;
+				try {
+					entity = datastore.get(txn, key);
+				} catch (EntityNotFoundException e) {
+					entity = new Entity(key);
+				}
+				Map<String, TagState> states = readStates(entity);
+				boolean changed = false;
+				long now = System.currentTimeMillis();
+				double latitude = current.getLatitude();
+				double longitude = current.getLongitude();
+
+				// Leave any tag we are now well away from
+				for (Iterator<TagState> i = states.values().iterator(); i.hasNext();) {
+					TagState state = i.next();
+					if (GeoMath.haversineMiles(latitude, longitude, state.latitude, state.longitude) > EXIT_RADIUS_MILES) {
+						LOG.info(userId + " left " + state.name);
+						i.remove();
+						changed = true;
+					}
+				}
+
+				// Start the dwell clock on a tag we have just come within range
+				// of
+				if (nearest != null && !states.containsKey(nearest.getId())) {
+					TagState state = new TagState();
+					state.name = nearest.getTag();
+					state.state = STATE_ENTERING;
+					state.since = now;
+					state.latitude = nearest.getLocation().getLatitude();
+					state.longitude = nearest.getLocation().getLongitude();
+					states.put(nearest.getId(), state);
+					changed = true;
+				}
+
+				// Enter tags we have stayed at long enough
+				Arrival arrival = null;
+				for (Map.Entry<String, TagState> entry : states.entrySet()) {
+					TagState state = entry.getValue();
+					if (STATE_ENTERING.equals(state.state) && now - state.since >= MIN_DWELL_MILLIS
+							&& GeoMath.haversineMiles(latitude, longitude, state.latitude, state.longitude) <= ENTER_RADIUS_MILES) {
+						state.state = STATE_INSIDE;
+						changed = true;
+						LOG.info(userId + " entered " + state.name);
+					}
+					if (arrival == null && STATE_INSIDE.equals(state.state) && !state.announced) {
+						arrival = new Arrival(entry.getKey(), state.name, state.since);
+					}
+				}
+
+				if (changed) {
+					writeStates(entity, states);
+					datastore.put(txn, entity);
+					txn.commit();
+				}
+				return arrival;
+			} catch (ConcurrentModificationException e) {
+				// Another ping for the same user got in first
+				if (attempt == UPDATE_ATTEMPTS) {
+					LOG.warning("Could not update tag states for " + userId + ": " + e);
+					return null;
+				}
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records that the user has been told about the arrival, so it is not
+	 * reported again.
+	 */
+	public static void announced(String userId, Arrival arrival) {
+		Key key = KeyFactory.createKey(KIND, userId);
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		for (int attempt = 1;; attempt++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity entity = datastore.get(txn, key);
+				Map<String, TagState> states = readStates(entity);
+				TagState state = states.get(arrival.tagId);
+				if (state == null || state.since != arrival.since || state.announced) {
+					// Already announced, or the user has left since
+					return;
+				}
+				state.announced = true;
+				writeStates(entity, states);
+				datastore.put(txn, entity);
+				txn.commit();
+				return;
+			} catch (EntityNotFoundException e) {
+				return;
+			} catch (ConcurrentModificationException e) {
+				if (attempt == UPDATE_ATTEMPTS) {
+					throw e;
+				}
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The closest tag within the radius, whether one of the user's own or a
+	 * point of interest.
+	 */
+	private static LocationTag findNearest(String userId, Location location, double radiusMiles) {
+		LocationTag tag = LocationUtil.getGeofenceIndex(userId).find(location.getLatitude(), location.getLongitude(),
+				radiusMiles);
+		LocationTag poi = PoiUtil.find(location, radiusMiles);
+		if (tag == null) {
+			return poi;
+		}
+		if (poi != null && LocationUtil.distanceBetweenLocations(poi.getLocation(), location)
+				< LocationUtil.distanceBetweenLocations(tag.getLocation(), location)) {
+			return poi;
+		}
+		return tag;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, TagState> readStates(Entity entity) {
+		Map<String, TagState> states = new LinkedHashMap<String, TagState>();
+		// Entities from before tags had IDs start over
+		List<String> ids = (List<String>) entity.getProperty("ids");
+		if (ids == null) {
+			return states;
+		}
+		List<String> names = (List<String>) entity.getProperty("names");
+		List<String> stateNames = (List<String>) entity.getProperty("states");
+		List<Long> since = (List<Long>) entity.getProperty("since");
+		List<Double> latitudes = (List<Double>) entity.getProperty("latitudes");
+		List<Double> longitudes = (List<Double>) entity.getProperty("longitudes");
+		List<Boolean> announced = (List<Boolean>) entity.getProperty("announced");
+		for (int i = 0; i < ids.size(); i++) {
+			TagState state = new TagState();
+			state.name = names.get(i);
+			state.state = stateNames.get(i);
+			state.since = since.get(i);
+			state.latitude = latitudes.get(i);
+			state.longitude = longitudes.get(i);
+			// Arrivals saved before announcements were tracked were reported
+			// when they happened
+			state.announced = announced != null ? announced.get(i) : STATE_INSIDE.equals(state.state);
+			states.put(ids.get(i), state);
+		}
+		return states;
+	}
+
+	private static void writeStates(Entity entity, Map<String, TagState> states) {
+		List<String> ids = new ArrayList<String>();
+		List<String> names = new ArrayList<String>();
+		List<String> stateNames = new ArrayList<String>();
+		List<Long> since = new ArrayList<Long>();
+		List<Double> latitudes = new ArrayList<Double>();
+		List<Double> longitudes = new ArrayList<Double>();
+		List<Boolean> announced = new ArrayList<Boolean>();
+		for (Map.Entry<String, TagState> entry : states.entrySet()) {
+			ids.add(entry.getKey());
+			names.add(entry.getValue().name);
+			stateNames.add(entry.getValue().state);
+			since.add(entry.getValue().since);
+			latitudes.add(entry.getValue().latitude);
+			longitudes.add(entry.getValue().longitude);
+			announced.add(entry.getValue().announced);
+		}
+		entity.removeProperty("tags");
+		entity.setUnindexedProperty("ids", ids);
+		entity.setUnindexedProperty("names", names);
+		entity.setUnindexedProperty("states", stateNames);
+		entity.setUnindexedProperty("since", since);
+		entity.setUnindexedProperty("latitudes", latitudes);
+		entity.setUnindexedProperty("longitudes", longitudes);
+		entity.setUnindexedProperty("announced", announced);
+	}
+}
@@ -0,0 +1,125 @@
+package com.google.glassware;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService.OutputEncoding;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.OutputSettings;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Shrinks JPEG and PNG images to the Glass display before they are sent, so
+ * cards don't carry more pixels than can be shown. Scaling is done by the
+ * Images service, at most {@link #MAX_CONCURRENT_TRANSFORMS} at a time per
+ * instance. Scaled images are kept in the {@link MediaStore}, and which
+ * scaled image belongs to which original is remembered, so the same image
+ * is only scaled once.
+ */
+public class ImageScaler {
+	private static final Logger LOG = Logger.getLogger(ImageScaler.class.getSimpleName());
+
+	public static final int GLASS_WIDTH = 640;
+	public static final int GLASS_HEIGHT = 360;
+
+	/**
+	 * Larger images are sent as they are. Scaling needs the whole image in
+	 * memory, so this is kept to about what a Glass photo weighs; anything
+	 * bigger is streamed instead of buffered.
+	 */
+	static final int MAX_INPUT_BYTES = 1024 * 1024;
+
+	private static final int MAX_CONCURRENT_TRANSFORMS = 4;
+	private static final int JPEG_QUALITY = 85;
+
+	private static final String MEMCACHE_PREFIX = "scaled:";
+	private static final int MEMCACHE_SECONDS = 24 * 60 * 60;
+
+	private static final Semaphore TRANSFORMS = new Semaphore(MAX_CONCURRENT_TRANSFORMS);
+
+	/** Digest of an original -> digest of its scaled image. */
+	private static final Cache<String, String> SCALED = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+	/**
+	 * Returns the MIME type of a JPEG or PNG image, or null if the content is
+	 * neither.
+	 */
+	public static String contentTypeOf(byte[] content) {
+		try {
+			switch (ImagesServiceFactory.makeImage(content).getFormat()) {
+			case JPEG:
+				return "image/jpeg";
+			case PNG:
+				return "image/png";
+			default:
+				return null;
+			}
+		} catch (IllegalArgumentException e) {
+			// Not an image at all
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the image scaled down to fit the Glass display, in the same
+	 * format. Content that is already small enough, isn't a JPEG or PNG, or
+	 * can't be scaled is returned as it is.
+	 */
+	public static byte[] scaleForGlass(byte[] content) {
+		if (content.length > MAX_INPUT_BYTES || contentTypeOf(content) == null) {
+			return content;
+		}
+		String digest = MediaStore.digest(content);
+		String scaledDigest = SCALED.getIfPresent(digest);
+		if (scaledDigest == null) {
+			scaledDigest = (String) MemcacheServiceFactory.getMemcacheService().get(MEMCACHE_PREFIX + digest);
+		}
+		if (scaledDigest != null) {
+			byte[] scaled = MediaStore.get(scaledDigest);
+			if (scaled != null) {
+				SCALED.put(digest, scaledDigest);
+				return scaled;
+			}
+		}
+
+		Image image = ImagesServiceFactory.makeImage(content);
+		if (image.getWidth() <= GLASS_WIDTH && image.getHeight() <= GLASS_HEIGHT) {
+			return content;
+		}
+		OutputSettings settings;
+		if (image.getFormat() == Image.Format.JPEG) {
+			settings = new OutputSettings(OutputEncoding.JPEG);
+			settings.setQuality(JPEG_QUALITY);
+		} else {
+			settings = new OutputSettings(OutputEncoding.PNG);
+		}
+
+		byte[] scaled;
+		TRANSFORMS.acquireUninterruptibly();
+		try {
+			scaled = ImagesServiceFactory.getImagesService()
+					.applyTransformAsync(ImagesServiceFactory.makeResize(GLASS_WIDTH, GLASS_HEIGHT), image, settings)
+					.get().getImageData();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return content;
+		} catch (ExecutionException e) {
+			LOG.warning("Could not scale image, sending it as it is: " + e.getCause());
+			return content;
+		} finally {
+			TRANSFORMS.release();
+		}
+
+		scaledDigest = MediaStore.put(scaled);
+		SCALED.put(digest, scaledDigest);
+		MemcacheServiceFactory.getAsyncMemcacheService().put(MEMCACHE_PREFIX + digest, scaledDigest,
+				Expiration.byDeltaSeconds(MEMCACHE_SECONDS));
+		LOG.info("Scaled image from " + content.length + " to " + scaled.length + " bytes");
+		return scaled;
+	}
+}
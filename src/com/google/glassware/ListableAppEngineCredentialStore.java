@@ -17,23 +17,27 @@ package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.auth.oauth2.CredentialStore;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.api.services.oauth2.model.Userinfo;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.oauth2.Oauth2;
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * A new credential store for App Engine. It's exactly the same as
@@ -51,27 +55,90 @@ public class ListableAppEngineCredentialStore implements CredentialStore {
 	 */
 	private static final String APPLICATION_NAME = "randy-test-glass/1.0";
 
-	/** Global instance of the HTTP transport. */
-	private static HttpTransport HTTP_TRANSPORT;
-
-	/** Global instance of the JSON factory. */
-	private static final JsonFactory JSON_FACTORY = new JacksonFactory();
-
 	private static final String KIND = ListableAppEngineCredentialStore.class
 			.getName();
 
-	public List<String> listAllUsers() {
-		DatastoreService datastore = DatastoreServiceFactory
-				.getDatastoreService();
-		Query userQuery = new Query(KIND);
-		Iterable<Entity> userEntities = datastore.prepare(userQuery)
-				.asIterable();
+	private static final int USER_PAGE_SIZE = 500;
+
+	/**
+	 * One page of user IDs, plus the cursor to resume from after it.
+	 */
+	public static class UserPage {
+		private final List<String> userIds;
+		private final String cursor;
+
+		UserPage(List<String> userIds, String cursor) {
+			this.userIds = userIds;
+			this.cursor = cursor;
+		}
+
+		public List<String> getUserIds() {
+			return userIds;
+		}
+
+		/**
+		 * Web-safe cursor for the next page, or null if this is the last one.
+		 */
+		public String getCursor() {
+			return cursor;
+		}
+	}
 
-		List<String> userIds = new ArrayList<String>();
+	/**
+	 * Returns one page of user IDs using a keys-only query.
+	 * 
+	 * @param cursor
+	 *            cursor from a previous page, or null to start at the
+	 *            beginning
+	 * @param pageSize
+	 *            maximum number of user IDs to return
+	 */
+	public UserPage listUsers(String cursor, int pageSize) {
+		Query userQuery = new Query(KIND).setKeysOnly();
+		FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageSize);
+		if (cursor != null) {
+			fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		QueryResultList<Entity> userEntities = AsyncStore.prepare(userQuery)
+				.asQueryResultList(fetchOptions);
+
+		List<String> userIds = new ArrayList<String>(userEntities.size());
 		for (Entity userEntity : userEntities) {
 			userIds.add(userEntity.getKey().getName());
 		}
-		return userIds;
+		String nextCursor = null;
+		if (userIds.size() == pageSize) {
+			nextCursor = userEntities.getCursor().toWebSafeString();
+		}
+		return new UserPage(userIds, nextCursor);
+	}
+
+	/**
+	 * Streams every user ID, fetching them a page at a time so memory use
+	 * does not grow with the number of users.
+	 */
+	public Iterator<String> iterateUsers(final int pageSize) {
+		return new AbstractIterator<String>() {
+			private UserPage page = listUsers(null, pageSize);
+			private Iterator<String> pageIterator = page.getUserIds()
+					.iterator();
+
+			@Override
+			protected String computeNext() {
+				while (!pageIterator.hasNext()) {
+					if (page.getCursor() == null) {
+						return endOfData();
+					}
+					page = listUsers(page.getCursor(), pageSize);
+					pageIterator = page.getUserIds().iterator();
+				}
+				return pageIterator.next();
+			}
+		};
+	}
+
+	public List<String> listAllUsers() {
+		return Lists.newArrayList(iterateUsers(USER_PAGE_SIZE));
 	}
 
 	@Override
@@ -100,8 +167,6 @@ public class ListableAppEngineCredentialStore implements CredentialStore {
 			System.err.println("An error occurred: " + e);
 			userInfo = null;
 		}
-		DatastoreService datastore = DatastoreServiceFactory
-				.getDatastoreService();
 		Entity entity = new Entity(KIND, userId);
 		entity.setProperty("accessToken", credential.getAccessToken());
 		entity.setProperty("refreshToken", credential.getRefreshToken());
@@ -114,55 +179,109 @@ public class ListableAppEngineCredentialStore implements CredentialStore {
 		entity.setProperty("userPicture", userPicture);
 		entity.setProperty("userTimezone", userTimezone);
 		entity.setProperty("userVerifiedEmail", userVerifiedEmail);
-		datastore.put(entity);
+		// Update the caches only once the put has landed, so they never hold
+		// a token the datastore does not
+		AsyncStore.await(AsyncStore.put(entity));
+		CredentialCache.update(userId, credential);
 	}
 
 	@Override
 	public void delete(String userId, Credential credential) {
-		DatastoreService datastore = DatastoreServiceFactory
-				.getDatastoreService();
-		Key key = KeyFactory.createKey(KIND, userId);
-		datastore.delete(key);
+		AsyncStore.await(AsyncStore.delete(KeyFactory.createKey(KIND,
+				userId)));
+		CredentialCache.invalidate(userId);
 	}
 
 	@Override
 	public boolean load(String userId, Credential credential) {
-		DatastoreService datastore = DatastoreServiceFactory
-				.getDatastoreService();
-		Key key = KeyFactory.createKey(KIND, userId);
-		try {
-			Entity entity = datastore.get(key);
-			credential.setAccessToken((String) entity
-					.getProperty("accessToken"));
-			credential.setRefreshToken((String) entity
-					.getProperty("refreshToken"));
-			credential.setExpirationTimeMilliseconds((Long) entity
-					.getProperty("expirationTimeMillis"));
-			return true;
-		} catch (EntityNotFoundException exception) {
-			return false;
+		CredentialCache.StoredCredential stored = CredentialCache
+				.getShared(userId);
+		if (stored == null) {
+			Entity entity = AsyncStore.await(AsyncStore.get(KeyFactory
+					.createKey(KIND, userId)));
+			if (entity == null) {
+				return false;
+			}
+			stored = toStoredCredential(entity);
+			CredentialCache.putShared(userId, stored);
 		}
+		stored.copyTo(credential);
+		return true;
 	}
 
-	public static Userinfo getStoredUserinfo(String userId) {
-		DatastoreService datastore = DatastoreServiceFactory
-				.getDatastoreService();
-		Key key = KeyFactory.createKey(KIND, userId);
-		try {
-			Entity entity = datastore.get(key);
-			Userinfo userInfo=new Userinfo();
-            userInfo.setEmail((String) entity.getProperty("userEmail"));
-            userInfo.setFamilyName((String) entity.getProperty("userFamilyName"));
-            userInfo.setGivenName((String) entity.getProperty("userGivenName"));
-            userInfo.setName((String) entity.getProperty("userName"));
-            userInfo.setPicture((String) entity.getProperty("userPicture"));
-            userInfo.setTimezone((String) entity.getProperty("userTimezone"));
-//          userInfo.setVerifiedEmail((boolean) entity.getProperty("userVerifiedEmail"));
+	/**
+	 * Bulk version of {@link #load}. Fills in each of the given blank
+	 * credentials with a single memcache call and at most one batch datastore
+	 * get.
+	 * 
+	 * @param credentials
+	 *            blank credentials keyed by user ID
+	 * @return the IDs of the users whose credential was found
+	 */
+	public Set<String> loadAll(Map<String, Credential> credentials) {
+		Map<String, CredentialCache.StoredCredential> stored = CredentialCache
+				.getAllShared(credentials.keySet());
 
-			return userInfo;
-		} catch (EntityNotFoundException exception) {
-			return null;
+		List<Key> missing = new ArrayList<Key>();
+		for (String userId : credentials.keySet()) {
+			if (!stored.containsKey(userId)) {
+				missing.add(KeyFactory.createKey(KIND, userId));
+			}
+		}
+		if (!missing.isEmpty()) {
+			Map<String, CredentialCache.StoredCredential> loaded = new HashMap<String, CredentialCache.StoredCredential>();
+			for (Entity entity : AsyncStore.await(AsyncStore.get(missing))
+					.values()) {
+				loaded.put(entity.getKey().getName(),
+						toStoredCredential(entity));
+			}
+			CredentialCache.putAllShared(loaded);
+			stored.putAll(loaded);
 		}
+
+		for (Map.Entry<String, CredentialCache.StoredCredential> entry : stored
+				.entrySet()) {
+			entry.getValue().copyTo(credentials.get(entry.getKey()));
+		}
+		return stored.keySet();
+	}
+
+	private static CredentialCache.StoredCredential toStoredCredential(
+			Entity entity) {
+		return new CredentialCache.StoredCredential(
+				(String) entity.getProperty("accessToken"),
+				(String) entity.getProperty("refreshToken"),
+				(Long) entity.getProperty("expirationTimeMillis"));
+	}
+
+	public static Userinfo getStoredUserinfo(String userId) {
+		return AsyncStore.await(getStoredUserinfoAsync(userId));
+	}
+
+	/**
+	 * Starts reading the user's stored profile, so a page can fetch it
+	 * alongside its Mirror requests. The result is null for unknown users.
+	 */
+	public static Future<Userinfo> getStoredUserinfoAsync(String userId) {
+		Key key = KeyFactory.createKey(KIND, userId);
+		return AsyncStore.transform(AsyncStore.get(key),
+				new Function<Entity, Userinfo>() {
+					@Override
+					public Userinfo apply(Entity entity) {
+						if (entity == null) {
+							return null;
+						}
+						Userinfo userInfo = new Userinfo();
+						userInfo.setEmail((String) entity.getProperty("userEmail"));
+						userInfo.setFamilyName((String) entity.getProperty("userFamilyName"));
+						userInfo.setGivenName((String) entity.getProperty("userGivenName"));
+						userInfo.setName((String) entity.getProperty("userName"));
+						userInfo.setPicture((String) entity.getProperty("userPicture"));
+						userInfo.setTimezone((String) entity.getProperty("userTimezone"));
+//						userInfo.setVerifiedEmail((boolean) entity.getProperty("userVerifiedEmail"));
+						return userInfo;
+					}
+				});
 	}
 
 	/**
@@ -177,9 +296,9 @@ public class ListableAppEngineCredentialStore implements CredentialStore {
 	static Userinfo getUserInfo(Credential credentials) throws Exception {
 		Userinfo userInfo = null;
 		try {
-			HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-			Oauth2 oauth2 = new Oauth2.Builder(HTTP_TRANSPORT, JSON_FACTORY,
-					credentials).setApplicationName(APPLICATION_NAME).build();
+			Oauth2 oauth2 = new Oauth2.Builder(MirrorClient.getHttpTransport(),
+					MirrorClient.getJsonFactory(), credentials)
+					.setApplicationName(APPLICATION_NAME).build();
 			userInfo = oauth2.userinfo().get().execute();
 		} catch (IOException e) {
 			System.err.println("An error occurred: " + e);
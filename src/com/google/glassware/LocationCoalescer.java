@@ -0,0 +1,66 @@
+package com.google.glassware;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.logging.Logger;
+
+/**
+ * Collapses bursts of location notifications for a user into one. The first
+ * ping claims the user and is processed after a short delay; pings that
+ * arrive while the claim is held are dropped, because processing fetches the
+ * "latest" location and so picks them up anyway.
+ */
+public class LocationCoalescer {
+	private static final Logger LOG = Logger.getLogger(LocationCoalescer.class
+			.getSimpleName());
+
+	private static final String MEMCACHE_PREFIX = "location-pending:";
+
+	/**
+	 * How long a claim outlives its delay, in case the task that should
+	 * release it is lost.
+	 */
+	private static final int CLAIM_GRACE_SECONDS = 60;
+
+	private static MemcacheService getMemcache() {
+		MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+		// We need to tell "already claimed" apart from "memcache is down"
+		memcache.setErrorHandler(ErrorHandlers.getStrict());
+		return memcache;
+	}
+
+	/**
+	 * Claims the user's pending location update.
+	 * 
+	 * @param windowSeconds
+	 *            how long the update will wait before it is processed
+	 * @return true if the caller should queue the update, false if one is
+	 *         already pending
+	 */
+	public static boolean claim(String userId, int windowSeconds) {
+		try {
+			return getMemcache().put(MEMCACHE_PREFIX + userId, Boolean.TRUE,
+					Expiration.byDeltaSeconds(windowSeconds + CLAIM_GRACE_SECONDS),
+					MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		} catch (MemcacheServiceException e) {
+			LOG.warning("Could not coalesce location update: " + e);
+			return true;
+		}
+	}
+
+	/**
+	 * Releases the claim, so the next ping queues a new update. Called just
+	 * before the pending update fetches the latest location.
+	 */
+	public static void release(String userId) {
+		try {
+			getMemcache().delete(MEMCACHE_PREFIX + userId);
+		} catch (MemcacheServiceException e) {
+			LOG.warning("Could not release location claim: " + e);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.google.glassware;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.mirror.model.Location;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.collect.AbstractIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+/**
+ * Each user's track of past locations. Points are appended to one entity per
+ * user per hour as a blob of varint deltas from the point before: latitude
+ * and longitude in millionths of a degree (about 4 inches) and time in
+ * seconds, so a point usually takes under ten bytes and no index rows. The
+ * last point of each block is kept as plain properties so appending never
+ * has to decode the blob.
+ */
+public class LocationHistory {
+	private static final Logger LOG = Logger.getLogger(LocationHistory.class.getSimpleName());
+
+	private static final String KIND = LocationHistory.class.getName();
+
+	private static final double MICRODEGREES = 1000000.0;
+	private static final long HOUR_SECONDS = 60 * 60;
+	private static final int APPEND_ATTEMPTS = 3;
+
+	/**
+	 * Adds a point to the end of the user's track. Uses the location's own
+	 * timestamp when it has one. A point that is not later than the last one
+	 * in its block (a redelivered or out of order ping) is skipped, so the
+	 * track stays in time order and time deltas are never negative.
+	 */
+	public static void append(String userId, Location location) {
+		long seconds = (location.getTimestamp() != null ? location.getTimestamp().getValue() : System
+				.currentTimeMillis()) / 1000;
+		long latitude = Math.round(location.getLatitude() * MICRODEGREES);
+		long longitude = Math.round(location.getLongitude() * MICRODEGREES);
+		Key key = blockKey(userId, seconds / HOUR_SECONDS);
+
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		for (int attempt = 1;; attempt++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity block;
+				long lastLatitude = 0;
+				long lastLongitude = 0;
+				long lastSeconds = seconds / HOUR_SECONDS * HOUR_SECONDS;
+				byte[] points = new byte[0];
+				try {
+					block = datastore.get(txn, key);
+					lastLatitude = (Long) block.getProperty("lastLatitude");
+					lastLongitude = (Long) block.getProperty("lastLongitude");
+					lastSeconds = (Long) block.getProperty("lastSeconds");
+					points = ((Blob) block.getProperty("points")).getBytes();
+					if (seconds <= lastSeconds) {
+						LOG.info("Skipped a history point for " + userId + " at " + seconds + ", not after "
+								+ lastSeconds);
+						return;
+					}
+				} catch (EntityNotFoundException e) {
+					block = new Entity(key);
+					block.setProperty("userId", userId);
+				}
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream(points.length + 16);
+				out.write(points, 0, points.length);
+				writeVarint(out, latitude - lastLatitude);
+				writeVarint(out, longitude - lastLongitude);
+				writeVarint(out, seconds - lastSeconds);
+
+				block.setUnindexedProperty("points", new Blob(out.toByteArray()));
+				block.setUnindexedProperty("lastLatitude", latitude);
+				block.setUnindexedProperty("lastLongitude", longitude);
+				block.setUnindexedProperty("lastSeconds", seconds);
+				datastore.put(txn, block);
+				txn.commit();
+				return;
+			} catch (ConcurrentModificationException e) {
+				// Another ping for the same hour got in first
+				if (attempt == APPEND_ATTEMPTS) {
+					LOG.warning("Dropped a history point for " + userId + ": " + e);
+					return;
+				}
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Streams the user's points between the two times, inclusive, a block at
+	 * a time. Points come back in the order they were appended.
+	 */
+	public static Iterator<Location> read(String userId, Date from, Date to) {
+		final long fromSeconds = from.getTime() / 1000;
+		final long toSeconds = to.getTime() / 1000;
+		Query query = new Query(KIND).setFilter(
+				CompositeFilterOperator.and(
+						new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL,
+								blockKey(userId, fromSeconds / HOUR_SECONDS)),
+						new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN_OR_EQUAL,
+								blockKey(userId, toSeconds / HOUR_SECONDS)))).addSort(Entity.KEY_RESERVED_PROPERTY,
+				SortDirection.ASCENDING);
+		final Iterator<Entity> blocks = DatastoreServiceFactory.getDatastoreService().prepare(query)
+				.asIterator(FetchOptions.Builder.withChunkSize(10));
+
+		return new AbstractIterator<Location>() {
+			private byte[] points = new byte[0];
+			private int position;
+			private long latitude;
+			private long longitude;
+			private long seconds;
+
+			@Override
+			protected Location computeNext() {
+				while (true) {
+					while (position < points.length) {
+						latitude += readVarint();
+						longitude += readVarint();
+						seconds += readVarint();
+						if (seconds >= fromSeconds && seconds <= toSeconds) {
+							Location location = new Location();
+							location.setLatitude(latitude / MICRODEGREES);
+							location.setLongitude(longitude / MICRODEGREES);
+							location.setTimestamp(new DateTime(seconds * 1000));
+							return location;
+						}
+					}
+					if (!blocks.hasNext()) {
+						return endOfData();
+					}
+					Entity block = blocks.next();
+					points = ((Blob) block.getProperty("points")).getBytes();
+					position = 0;
+					latitude = 0;
+					longitude = 0;
+					seconds = hourOf(block.getKey()) * HOUR_SECONDS;
+				}
+			}
+
+			private long readVarint() {
+				long raw = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = points[position++];
+					raw |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				// Undo the zigzag so small negative deltas stay small
+				return (raw >>> 1) ^ -(raw & 1);
+			}
+		};
+	}
+
+	/**
+	 * Zigzag encodes the value, then writes it seven bits at a time.
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		long raw = (value << 1) ^ (value >> 63);
+		while ((raw & ~0x7fL) != 0) {
+			out.write((int) (raw & 0x7f) | 0x80);
+			raw >>>= 7;
+		}
+		out.write((int) raw);
+	}
+
+	/**
+	 * The hour is zero padded so a user's blocks sort by time.
+	 */
+	private static Key blockKey(String userId, long hour) {
+		return KeyFactory.createKey(KIND, userId + "/" + String.format("%010d", hour));
+	}
+
+	private static long hourOf(Key key) {
+		String name = key.getName();
+		return Long.parseLong(name.substring(name.lastIndexOf('/') + 1));
+	}
+}
@@ -4,6 +4,16 @@ import com.google.api.services.mirror.model.Location;
 
 public class LocationTag {
 
+	/**
+	 * Identifies the tag or point of interest itself, whatever it is called:
+	 * the key of the entity it was loaded from.
+	 */
+	public String getId() {
+		return id;
+	}
+	public void setId(String id) {
+		this.id = id;
+	}
 	public String getUserId() {
 		return userId;
 	}
@@ -22,6 +32,7 @@ public class LocationTag {
 	public void setTag(String tag) {
 		this.tag = tag;
 	}
+	private String id;
 	private String userId;
 	private Location location;
 	private String tag;
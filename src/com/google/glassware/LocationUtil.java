@@ -1,23 +1,28 @@
 package com.google.glassware;
 
 import com.google.api.services.mirror.model.Location;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
-import com.javadocmd.simplelatlng.LatLng;
-import com.javadocmd.simplelatlng.LatLngTool;
-import com.javadocmd.simplelatlng.util.LengthUnit;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class LocationUtil {
@@ -28,14 +33,35 @@ public class LocationUtil {
 	private static final String LOCATION_TAGS = KIND + ".tags";
 
 	/**
-	 * Save the glass wearer's current location.
+	 * Current locations are also kept in memcache as {latitude, longitude,
+	 * date in millis}, so the common save can skip reading the old one.
+	 */
+	private static final String MEMCACHE_PREFIX = "location-current:";
+	private static final int MEMCACHE_SECONDS = 60 * 60;
+
+	/** Older current locations are ignored. */
+	private static final long CURRENT_MAX_AGE_MILLIS = 15 * 60 * 1000;
+
+	/** How close to a tag's location counts as being at the tag. */
+	static final double TAG_RADIUS_MILES = 0.1;
+
+	/**
+	 * Each user's tags, indexed. Dropped by saveTag on this instance; tags
+	 * saved on another instance show up once the entry expires.
+	 */
+	private static final Cache<String, GeofenceIndex> GEOFENCES = CacheBuilder.newBuilder().maximumSize(1000)
+			.expireAfterWrite(5, TimeUnit.MINUTES).build();
+
+	/**
+	 * Save the glass wearer's current location. The memcache copy, which is
+	 * what reads see first, is only written once the datastore has the
+	 * location.
 	 * 
 	 * @param userId
 	 * @param location
 	 */
 	public static void save(String userId, Location location) {
 
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 		Entity entity = new Entity(LOCATION_CURRENT, userId);
 		entity.setProperty("userId", userId);
 		entity.setProperty("latitude", location.getLatitude());
@@ -43,13 +69,40 @@ public class LocationUtil {
 		Date date = new Date();
 		entity.setProperty("date", date); // GMT
 
-		datastore.put(entity);
+		// Drop the old copy first, so a failure anywhere below leaves a miss
+		// rather than a stale location
+		MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+		memcache.delete(MEMCACHE_PREFIX + userId);
+		AsyncStore.await(AsyncStore.put(entity));
+		if (!memcache.put(MEMCACHE_PREFIX + userId,
+				new double[] { location.getLatitude(), location.getLongitude(), date.getTime() },
+				Expiration.byDeltaSeconds(MEMCACHE_SECONDS), SetPolicy.SET_ALWAYS)) {
+			memcache.delete(MEMCACHE_PREFIX + userId);
+		}
 		LOG.info("Saved location for " + userId);
 	}
 
+	/**
+	 * Saves the glass wearer's current location and returns the one it
+	 * replaces, or null if that is missing or stale. The old location usually
+	 * comes from memcache, so this costs the one datastore put.
+	 */
+	public static Location swap(String userId, Location location) {
+		return swap(userId, getAsync(userId), location);
+	}
+
+	/**
+	 * Like {@link #swap(String, Location)}, for callers that started reading
+	 * the old location with {@link #getAsync} earlier.
+	 */
+	public static Location swap(String userId, Future<Location> previous, Location location) {
+		Location previousLocation = AsyncStore.await(previous);
+		save(userId, location);
+		return previousLocation;
+	}
+
 	public static void saveTag(String userId, Location location, String tag) {
 
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 		Entity entity = new Entity(LOCATION_TAGS, userId + tag);
 		entity.setProperty("userId", userId);
 		entity.setProperty("latitude", location.getLatitude());
@@ -58,61 +111,78 @@ public class LocationUtil {
 		entity.setProperty("date", date); // GMT
 		entity.setProperty("tag", tag);
 
-		datastore.put(entity);
+		// Wait, or the index could be rebuilt from the old tags
+		AsyncStore.await(AsyncStore.put(entity));
+		GEOFENCES.invalidate(userId);
 		LOG.info("Saved location for " + userId + " tag " + tag);
 	}
 
 	public static Location get(String userId) {
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-		Key key = KeyFactory.createKey(LOCATION_CURRENT, userId);
-		try {
-			Entity entity = datastore.get(key);
-			Date storedDate = (Date) entity.getProperty("date");
-
-			LOG.info("storedDate " + storedDate);
-			Long storedTime = storedDate.getTime();
-			Date now = new Date();
-			Long currentTime = now.getTime();
-			// determine how old the stored entry is by seconds
-			Long timeDifference = (currentTime - storedTime) / 1000;
-			LOG.info("timeDifference = " + Long.valueOf(timeDifference));
-
-			if (timeDifference > 60 * 15) {
-				// if older than 15 minutes than ignore old location data
-				return null;
-			}
-			Location location = new Location();
-			location.setLatitude((Double) entity.getProperty("latitude"));
-			location.setLongitude((Double) entity.getProperty("longitude"));
-			return location;
-		} catch (EntityNotFoundException e) {
-			return null;
-		}
+		return AsyncStore.await(getAsync(userId));
 	}
 
-	public static Location getTag(String userId, String tag) {
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-		Key key = KeyFactory.createKey(LOCATION_TAGS, userId + tag);
-
-		try {
-			Entity entity = datastore.get(key);
+	/**
+	 * Starts reading the glass wearer's current location, which is null if
+	 * it is missing or stale. Only a memcache miss goes on to the datastore.
+	 */
+	public static Future<Location> getAsync(final String userId) {
+		return AsyncStore.transform(MemcacheServiceFactory.getAsyncMemcacheService().get(MEMCACHE_PREFIX + userId),
+				new Function<Object, Location>() {
+					@Override
+					public Location apply(Object cached) {
+						double[] current = (double[]) cached;
+						if (current == null) {
+							Entity entity = AsyncStore.await(AsyncStore.get(KeyFactory.createKey(LOCATION_CURRENT, userId)));
+							if (entity == null) {
+								return null;
+							}
+							current = new double[] { (Double) entity.getProperty("latitude"),
+									(Double) entity.getProperty("longitude"), ((Date) entity.getProperty("date")).getTime() };
+							// Only fill a miss, so this never overwrites a newer
+							// location saved meanwhile
+							MemcacheServiceFactory.getAsyncMemcacheService().put(MEMCACHE_PREFIX + userId, current,
+									Expiration.byDeltaSeconds(MEMCACHE_SECONDS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+						}
+
+						if (System.currentTimeMillis() - (long) current[2] > CURRENT_MAX_AGE_MILLIS) {
+							// if older than 15 minutes than ignore old location data
+							return null;
+						}
+						Location location = new Location();
+						location.setLatitude(current[0]);
+						location.setLongitude(current[1]);
+						return location;
+					}
+				});
+	}
 
-			Location location = new Location();
-			location.setLatitude((Double) entity.getProperty("latitude"));
-			location.setLongitude((Double) entity.getProperty("longitude"));
-			return location;
-		} catch (EntityNotFoundException e) {
-			return null;
-		}
+	public static Location getTag(String userId, String tag) {
+		return AsyncStore.await(getTagAsync(userId, tag));
+	}
 
+	/**
+	 * Starts reading one of the user's tags; null if there is no such tag.
+	 */
+	public static Future<Location> getTagAsync(String userId, String tag) {
+		Key key = KeyFactory.createKey(LOCATION_TAGS, userId + tag);
+		return AsyncStore.transform(AsyncStore.get(key), new Function<Entity, Location>() {
+			@Override
+			public Location apply(Entity entity) {
+				if (entity == null) {
+					return null;
+				}
+				Location location = new Location();
+				location.setLatitude((Double) entity.getProperty("latitude"));
+				location.setLongitude((Double) entity.getProperty("longitude"));
+				return location;
+			}
+		});
 	}
 
 	public static List<LocationTag> getAllTags(String userId) {
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-
 		Filter userIdFilter = new FilterPredicate("userId", FilterOperator.EQUAL, userId);
 		Query tagQuery = new Query(LOCATION_TAGS).setFilter(userIdFilter);
-		Iterable<Entity> userEntities = datastore.prepare(tagQuery).asIterable();
+		Iterable<Entity> userEntities = AsyncStore.prepare(tagQuery).asIterable();
 
 		List<LocationTag> tags = new ArrayList<LocationTag>();
 		for (Entity tagEntity : userEntities) {
@@ -122,6 +192,7 @@ public class LocationUtil {
 			location.setLongitude((Double) tagEntity.getProperty("longitude"));
 
 			LocationTag tag = new LocationTag();
+			tag.setId(KeyFactory.keyToString(tagEntity.getKey()));
 			tag.setUserId(userId);
 			tag.setLocation(location);
 			tag.setTag((String) tagEntity.getProperty("tag"));
@@ -132,29 +203,36 @@ public class LocationUtil {
 	}
 
 	public static double distanceBetweenLocations(Location location1, Location location2) {
-		LatLng point1 = new LatLng(location1.getLatitude(), location1.getLongitude());
-		LatLng point2 = new LatLng(location2.getLatitude(), location2.getLongitude());
-		double distanceInMiles = LatLngTool.distance(point1, point2, LengthUnit.MILE);
-		return distanceInMiles;
+		return GeoMath.haversineMiles(location1.getLatitude(), location1.getLongitude(), location2.getLatitude(),
+				location2.getLongitude());
 	}
 
-	public static String enterTag(String userId, Location previous, Location current) {
-		List<LocationTag> locationTags = getAllTags(userId);
-		if (locationTags == null) {
-			// no tags for this user
-			return null;
-		}
-		if (distanceBetweenLocations(previous, current) < 0.1) {
-			LOG.info("not enough distance between previous and current");
-//			return null;
+	/**
+	 * Returns the user's tags as a {@link GeofenceIndex}, building it from the
+	 * datastore only if it isn't cached.
+	 */
+	static GeofenceIndex getGeofenceIndex(final String userId) {
+		try {
+			return GEOFENCES.get(userId, new Callable<GeofenceIndex>() {
+				@Override
+				public GeofenceIndex call() {
+					return new GeofenceIndex(getAllTags(userId), TAG_RADIUS_MILES);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
 		}
-		for (LocationTag locationTag : locationTags) {
-			if (distanceBetweenLocations(locationTag.getLocation(), current) < 0.1) {
-				LOG.info("matched tag location: "+locationTag.getTag());
-				return locationTag.getTag();
-			}
+	}
+
+	/**
+	 * Returns the arrival the user has not been told about yet, or null.
+	 * Staying at a tag only reports it once; see {@link GeofenceTracker}.
+	 */
+	public static GeofenceTracker.Arrival enterTag(String userId, Location previous, Location current) {
+		GeofenceTracker.Arrival arrival = GeofenceTracker.update(userId, previous, current);
+		if (arrival != null) {
+			LOG.info("matched tag location: "+arrival.getTag());
 		}
-		LOG.info("no matched tag");
-		return null;
+		return arrival;
 	}
 }
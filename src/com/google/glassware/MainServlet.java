@@ -16,27 +16,21 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
-import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.mirror.model.Contact;
 import com.google.api.services.mirror.model.MenuItem;
 import com.google.api.services.mirror.model.MenuValue;
 import com.google.api.services.mirror.model.NotificationConfig;
 import com.google.api.services.mirror.model.TimelineItem;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -53,34 +47,19 @@ public class MainServlet extends HttpServlet {
 	@SuppressWarnings("unused")
 	private static final String KIND = MainServlet.class.getName();
 
-	/**
-	 * Private class to process batch request results.
-	 * 
-	 * For more information, see
-	 * https://code.google.com/p/google-api-java-client/wiki/Batch.
-	 */
-	private final class BatchCallback extends JsonBatchCallback<TimelineItem> {
-		private int success = 0;
-		private int failure = 0;
-
-		@Override
-		public void onSuccess(TimelineItem item, HttpHeaders headers)
-				throws IOException {
-			++success;
-		}
-
-		@Override
-		public void onFailure(GoogleJsonError error, HttpHeaders headers)
-				throws IOException {
-			++failure;
-			LOG.info("Failed to insert item: " + error.getMessage());
-		}
-	}
-
 	private static final Logger LOG = Logger.getLogger(MainServlet.class
 			.getSimpleName());
 	public static final String CONTACT_NAME = "Randy Glass Test";
 
+	/**
+	 * The operations counted by name; anything else is counted as unknown, so
+	 * a client can't create counters at will.
+	 */
+	private static final Set<String> OPERATIONS = ImmutableSet.of(
+			"insertSubscription", "deleteSubscription", "insertItem",
+			"insertRemindMe", "insertItemWithAction", "insertContact",
+			"deleteContact", "insertItemAllUsers", "resumeBroadcast");
+
 	/**
 	 * Do stuff when buttons on index.jsp are clicked
 	 */
@@ -88,10 +67,13 @@ public class MainServlet extends HttpServlet {
 	protected void doPost(HttpServletRequest req, HttpServletResponse res)
 			throws IOException {
 
-		String userId = AuthUtil.getUserId(req);
-		Credential credential = AuthUtil.newAuthorizationCodeFlow()
-				.loadCredential(userId);
+		AuthContext authContext = AuthContext.get(req);
+		String userId = authContext.getUserId();
+		Credential credential = authContext.getCredential();
 		String message = "";
+		String operation = req.getParameter("operation");
+		Metrics.increment("operation:"
+				+ (OPERATIONS.contains(operation) ? operation : "unknown"));
 
 		if (req.getParameter("operation").equals("insertSubscription")) {
 
@@ -111,7 +93,7 @@ public class MainServlet extends HttpServlet {
 		} else if (req.getParameter("operation").equals("deleteSubscription")) {
 
 			// subscribe (only works deployed to production)
-			MirrorClient.deleteSubscription(credential,
+			MirrorClient.deleteSubscription(credential, userId,
 					req.getParameter("subscriptionId"));
 
 			message = "Application has been unsubscribed.";
@@ -119,6 +101,8 @@ public class MainServlet extends HttpServlet {
 		} else if (req.getParameter("operation").equals("insertItem")) {
 			LOG.fine("Inserting Timeline Item");
 			TimelineItem timelineItem = new TimelineItem();
+			byte[] image = null;
+			String imageContentType = null;
 
 			if (req.getParameter("message") != null) {
 				if (req.getParameter("fullmessage") != null) {
@@ -133,9 +117,17 @@ public class MainServlet extends HttpServlet {
 				StringBuilder builder = new StringBuilder();
 				builder.append("<article class=\"photo\">\n");
 				if (req.getParameter("imageUrl") != null) {
+					// Attach the image at Glass size if we can, rather than
+					// have Glass fetch the full size one
+					image = fetchImage(req.getParameter("imageUrl"));
+					if (image != null) {
+						imageContentType = ImageScaler.contentTypeOf(image);
+						image = ImageScaler.scaleForGlass(image);
+					}
 					builder.append("<div class=\"photo-overlay\"/>\n");
 					builder.append("</div>\n");
-					builder.append("<img src=\"" + req.getParameter("imageUrl")
+					builder.append("<img src=\""
+							+ (image != null ? "attachment:0" : req.getParameter("imageUrl"))
 							+ "\" width=\"100%\" height=\"100%\">\n");
 				}
 				builder.append("<section>\n");
@@ -166,9 +158,15 @@ public class MainServlet extends HttpServlet {
 			timelineItem.setNotification(new NotificationConfig()
 					.setLevel("DEFAULT"));
 
-			TimelineItem inserted = MirrorClient.insertTimelineItem(credential,
-					timelineItem);
-			SaveNewsPost(inserted);
+			TimelineItem inserted;
+			if (image != null) {
+				inserted = MirrorClient.insertTimelineItem(credential, userId,
+						timelineItem, imageContentType, image);
+			} else {
+				inserted = MirrorClient.insertTimelineItem(credential, userId,
+						timelineItem);
+			}
+			UserRecords.recordNewsPost(inserted, 0);
 
 			message = "A timeline item has been inserted.";
 
@@ -217,7 +215,7 @@ public class MainServlet extends HttpServlet {
 			timelineItem.setNotification(new NotificationConfig()
 					.setLevel("DEFAULT"));
 
-			MirrorClient.insertTimelineItem(credential, timelineItem);
+			MirrorClient.insertTimelineItem(credential, userId, timelineItem);
 
 			message = "Insert a Set Location card.";
 
@@ -243,7 +241,7 @@ public class MainServlet extends HttpServlet {
 			timelineItem.setNotification(new NotificationConfig()
 					.setLevel("DEFAULT"));
 
-			MirrorClient.insertTimelineItem(credential, timelineItem);
+			MirrorClient.insertTimelineItem(credential, userId, timelineItem);
 
 			message = "A timeline item with actions has been inserted.";
 
@@ -259,7 +257,7 @@ public class MainServlet extends HttpServlet {
 				contact.setDisplayName(req.getParameter("name"));
 				contact.setImageUrls(Lists.newArrayList(req
 						.getParameter("iconUrl")));
-				MirrorClient.insertContact(credential, contact);
+				MirrorClient.insertContact(credential, userId, contact);
 
 				message = "Inserted contact: " + req.getParameter("name");
 			}
@@ -268,7 +266,7 @@ public class MainServlet extends HttpServlet {
 
 			// Insert a contact
 			LOG.fine("Deleting contact Item");
-			MirrorClient.deleteContact(credential, req.getParameter("id"));
+			MirrorClient.deleteContact(credential, userId, req.getParameter("id"));
 
 			message = "Contact has been deleted.";
 
@@ -276,38 +274,37 @@ public class MainServlet extends HttpServlet {
 			if (req.getServerName().contains(
 					"glass-java-starter-demo.appspot.com")) {
 				message = "This function is disabled on the demo instance.";
-			}
-
-			// Insert a contact
-			List<String> users = AuthUtil.getAllUserIds();
-			LOG.info("found " + users.size() + " users");
-			if (users.size() > 10) {
-				// We wouldn't want you to run out of quota on your first day!
-				message = "Total user count is " + users.size()
-						+ ". Aborting broadcast " + "to save your quota.";
+			} else if (!isAdmin()) {
+				message = "Only an administrator can send a card to all users.";
 			} else {
 				TimelineItem allUsersItem = new TimelineItem();
 				allUsersItem.setText("Hello Everyone!");
 				allUsersItem.setCanonicalUrl("http://hello.com/");
 
-				BatchRequest batch = MirrorClient.getMirror(null).batch();
-				BatchCallback callback = new BatchCallback();
-
 				// TODO: add a picture of a cat
-				for (String user : users) {
-					Credential userCredential = AuthUtil.getCredential(user);
-					MirrorClient.getMirror(userCredential).timeline()
-							.insert(allUsersItem).queue(batch, callback);
-				}
+				// The cards are sent from the broadcast task queue
+				long broadcastId = BroadcastEngine.start(allUsersItem);
+				UserRecords.recordNewsPost(allUsersItem, broadcastId);
+				message = "Broadcast " + broadcastId + " has been queued. "
+						+ "Follow it at /broadcaststatus?id=" + broadcastId;
+			}
 
-				batch.execute();
-				SaveNewsPost(allUsersItem);
-				message = "Successfully sent cards to " + callback.success
-						+ " users (" + callback.failure + " failed).";
+		} else if (req.getParameter("operation").equals("resumeBroadcast")) {
+			long broadcastId;
+			try {
+				broadcastId = Long.parseLong(req.getParameter("broadcastId"));
+			} catch (NumberFormatException e) {
+				broadcastId = 0;
+			}
+			if (!isAdmin()) {
+				message = "Only an administrator can resume a broadcast.";
+			} else if (broadcastId > 0 && BroadcastEngine.resume(broadcastId)) {
+				message = "Broadcast " + broadcastId + " has been resumed.";
+			} else {
+				message = "There is no such broadcast.";
 			}
 
 		} else {
-			String operation = req.getParameter("operation");
 			LOG.warning("Unknown operation specified " + operation);
 			message = "I don't know how to do that";
 		}
@@ -315,24 +312,31 @@ public class MainServlet extends HttpServlet {
 		res.sendRedirect(WebUtil.buildUrl(req, "/"));
 	}
 
-	void SaveNewsPost(TimelineItem timelineItem) {
-		Key newsPostKey = KeyFactory
-				.createKey("NewsPost", timelineItem.getId());
-		Entity drilled = new Entity("newspost", newsPostKey);
-		Date date = new Date();
-		drilled.setProperty("date", date);
-		drilled.setProperty("timelineId", timelineItem.getId());
-		String Text = timelineItem.getText();
-		if (Text.length() > 500) {
-			Text = Text.substring(0, 500);
+	/**
+	 * Whether the request comes from an administrator of the app, signed in
+	 * with their Google account (the Glass OAuth sign in does not count).
+	 */
+	private static boolean isAdmin() {
+		UserService userService = UserServiceFactory.getUserService();
+		return userService.isUserLoggedIn() && userService.isUserAdmin();
+	}
+
+	/**
+	 * Downloads a JPEG or PNG image for a card; null if it can't be fetched,
+	 * is too large to scale or isn't one. Glass then fetches it itself.
+	 */
+	private static byte[] fetchImage(String imageUrl) {
+		try {
+			// Anyone can pass any URL, so don't read more than is worth scaling
+			byte[] image = MediaStore.fetch(imageUrl, ImageScaler.MAX_INPUT_BYTES);
+			if (image == null) {
+				LOG.info("Not attaching " + imageUrl + ", it is too large");
+				return null;
+			}
+			return ImageScaler.contentTypeOf(image) != null ? image : null;
+		} catch (Exception e) {
+			LOG.info("Couldn't get image " + imageUrl + ": " + e);
+			return null;
 		}
-		drilled.setProperty("timelineText", Text);
-		drilled.setProperty("timelineHtml", timelineItem.getHtml());
-		drilled.setProperty("timelineCanonicalUrl",
-				timelineItem.getCanonicalUrl());
-
-		DatastoreService datastore = DatastoreServiceFactory
-				.getDatastoreService();
-		datastore.put(drilled);
 	}
 }
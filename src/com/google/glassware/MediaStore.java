@@ -0,0 +1,153 @@
+package com.google.glassware;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Media we send and serve, stored by the SHA-1 digest of its content so the
+ * same bytes are only ever kept once. The most recently used content is
+ * kept in process up to {@link #MAX_LOCAL_BYTES}, and anything small enough
+ * in memcache as well.
+ * <p>
+ * Fixed assets, like the drill image, are fetched once per instance, when
+ * first used, instead of on every use. They are not fetched at startup so a
+ * cold start never waits on the asset host.
+ */
+public class MediaStore {
+	public static final String DRILL_IMAGE = "drill";
+
+	private static final Map<String, String> ASSET_URLS = ImmutableMap.of(DRILL_IMAGE,
+			"http://nazret.com/blog/media/blogs/new/oil_drill2042909.jpg");
+
+	private static final int MAX_LOCAL_BYTES = 32 * 1024 * 1024;
+	private static final int MAX_MEMCACHE_BYTES = 900 * 1024;
+
+	private static final String MEMCACHE_PREFIX = "media:";
+	private static final int MEMCACHE_SECONDS = 24 * 60 * 60;
+
+	private static final Cache<String, byte[]> CONTENT = CacheBuilder.newBuilder().maximumWeight(MAX_LOCAL_BYTES)
+			.weigher(new Weigher<String, byte[]>() {
+				@Override
+				public int weigh(String digest, byte[] content) {
+					return content.length;
+				}
+			}).build();
+
+	/** Asset name -> digest of its content. */
+	private static final Cache<String, String> ASSETS = CacheBuilder.newBuilder().build();
+
+	/**
+	 * Stores the content.
+	 * 
+	 * @return its digest
+	 */
+	public static String put(byte[] content) {
+		String digest = digest(content);
+		if (CONTENT.getIfPresent(digest) == null) {
+			CONTENT.put(digest, content);
+			if (content.length <= MAX_MEMCACHE_BYTES) {
+				MemcacheServiceFactory.getAsyncMemcacheService().put(MEMCACHE_PREFIX + digest, content,
+						Expiration.byDeltaSeconds(MEMCACHE_SECONDS));
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * Returns the digest content is stored under.
+	 */
+	public static String digest(byte[] content) {
+		return Hashing.sha1().hashBytes(content).toString();
+	}
+
+	/**
+	 * Returns the content with the given digest, or null if it is not stored.
+	 */
+	public static byte[] get(String digest) {
+		byte[] content = CONTENT.getIfPresent(digest);
+		if (content == null) {
+			content = (byte[]) MemcacheServiceFactory.getMemcacheService().get(MEMCACHE_PREFIX + digest);
+			if (content != null) {
+				CONTENT.put(digest, content);
+			}
+		}
+		return content;
+	}
+
+	/**
+	 * Returns the content of a fixed asset, fetching it if this instance
+	 * hasn't yet. Concurrent callers share one fetch.
+	 */
+	public static byte[] getAsset(final String name) throws IOException {
+		try {
+			String digest = ASSETS.get(name, new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return put(fetch(ASSET_URLS.get(name)));
+				}
+			});
+			byte[] content = get(digest);
+			if (content == null) {
+				// Evicted; fetch it again and use what was fetched, whether
+				// or not the store manages to keep it this time
+				content = fetch(ASSET_URLS.get(name));
+				ASSETS.put(name, put(content));
+			}
+			return content;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Downloads the content at a URL.
+	 */
+	static byte[] fetch(String url) throws IOException {
+		return fetch(url, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Downloads the content at a URL, unless it is larger than maxBytes.
+	 * 
+	 * @return the content, or null if it is too large
+	 */
+	static byte[] fetch(String url, int maxBytes) throws IOException {
+		HttpResponse response = MirrorClient.getHttpTransport().createRequestFactory()
+				.buildGetRequest(new GenericUrl(url)).execute();
+		InputStream content = response.getContent();
+		try {
+			Long length = response.getHeaders().getContentLength();
+			if (length != null && length > maxBytes) {
+				return null;
+			}
+			// The length may be missing or wrong, so read one byte past the
+			// limit to tell
+			byte[] bytes = ByteStreams.toByteArray(ByteStreams.limit(content, (long) maxBytes + 1));
+			return bytes.length > maxBytes ? null : bytes;
+		} finally {
+			if (content != null) {
+				content.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.google.glassware;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Counts of what the app does, per day: operations, notifications and their
+ * actions, broadcast outcomes and Mirror error codes.
+ * <p>
+ * Counting only touches an in-memory buffer. Every
+ * {@link #FLUSH_INTERVAL_MILLIS} the buffer is handed to a task as one
+ * batch of deltas, and the task adds each delta to one of
+ * {@link #NUM_SHARDS} shard entities, so busy counters don't contend on one
+ * entity group. Counts buffered on an instance that shuts down are lost.
+ * <p>
+ * Every flush has an ID, which names its task and picks the shard of each
+ * counter. A shard records the flushes it has applied in the same
+ * transaction as the count, so a retried task does not count anything
+ * twice. Shards only remember flushes for {@link #APPLIED_WINDOW_MILLIS};
+ * tasks older than that are dropped.
+ */
+public class Metrics {
+	private static final Logger LOG = Logger.getLogger(Metrics.class.getSimpleName());
+
+	static final String WORKER_PATH = "/tasks/metrics";
+
+	private static final String SHARD_KIND = "MetricShard";
+	private static final int NUM_SHARDS = 20;
+	private static final long FLUSH_INTERVAL_MILLIS = 10 * 1000;
+	private static final int SHARD_ATTEMPTS = 3;
+	static final long APPLIED_WINDOW_MILLIS = 60 * 60 * 1000;
+
+	private static final ConcurrentMap<String, AtomicLong> PENDING = new ConcurrentHashMap<String, AtomicLong>();
+	private static final AtomicLong LAST_FLUSH = new AtomicLong(System.currentTimeMillis());
+
+	public static void increment(String name) {
+		add(name, 1);
+	}
+
+	public static void add(String name, long delta) {
+		AtomicLong counter = PENDING.get(name);
+		if (counter == null) {
+			AtomicLong added = new AtomicLong();
+			counter = PENDING.putIfAbsent(name, added);
+			if (counter == null) {
+				counter = added;
+			}
+		}
+		counter.addAndGet(delta);
+
+		long now = System.currentTimeMillis();
+		long lastFlush = LAST_FLUSH.get();
+		// Only one request flushes each interval
+		if (now - lastFlush >= FLUSH_INTERVAL_MILLIS && LAST_FLUSH.compareAndSet(lastFlush, now)) {
+			flush();
+		}
+	}
+
+	/**
+	 * Queues a task with everything counted since the last flush.
+	 */
+	static void flush() {
+		String flushId = UUID.randomUUID().toString();
+		long now = System.currentTimeMillis();
+		TaskOptions task = TaskOptions.Builder.withUrl(WORKER_PATH).taskName("metrics-" + flushId)
+				.param("flush", flushId).param("flushed", Long.toString(now)).param("day", day(new Date(now)));
+		boolean empty = true;
+		for (Map.Entry<String, AtomicLong> entry : PENDING.entrySet()) {
+			long delta = entry.getValue().getAndSet(0);
+			if (delta != 0) {
+				task.param("counter", entry.getKey() + " " + delta);
+				empty = false;
+			}
+		}
+		if (!empty) {
+			QueueFactory.getDefaultQueue().addAsync(task);
+		}
+	}
+
+	/**
+	 * Adds a delta from a flush to the counter, unless the flush was already
+	 * applied. Called by the flush task.
+	 * 
+	 * @param flushed
+	 *            when the flush was made, in millis
+	 */
+	static void apply(String flushId, long flushed, String day, String name, long delta) {
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		// The same shard every time this flush is retried
+		int shardNumber = Math.abs((flushId + name).hashCode() % NUM_SHARDS);
+		Key key = KeyFactory.createKey(SHARD_KIND, day + "|" + name + "|" + shardNumber);
+		for (int attempt = 1;; attempt++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity shard;
+				try {
+					shard = datastore.get(txn, key);
+				} catch (EntityNotFoundException e) {
+					shard = new Entity(key);
+					shard.setProperty("day", day);
+					shard.setProperty("name", name);
+					shard.setUnindexedProperty("count", 0L);
+				}
+				List<String> flushIds = getList(shard, "flushIds");
+				if (flushIds.contains(flushId)) {
+					LOG.info("Flush " + flushId + " already applied to " + key);
+					return;
+				}
+				List<Long> flushTimes = getList(shard, "flushTimes");
+				// Forget flushes too old to be retried
+				long cutoff = System.currentTimeMillis() - APPLIED_WINDOW_MILLIS;
+				for (int i = flushTimes.size() - 1; i >= 0; i--) {
+					if (flushTimes.get(i) < cutoff) {
+						flushIds.remove(i);
+						flushTimes.remove(i);
+					}
+				}
+				flushIds.add(flushId);
+				flushTimes.add(flushed);
+
+				shard.setUnindexedProperty("count", (Long) shard.getProperty("count") + delta);
+				shard.setUnindexedProperty("flushIds", flushIds);
+				shard.setUnindexedProperty("flushTimes", flushTimes);
+				datastore.put(txn, shard);
+				txn.commit();
+				return;
+			} catch (ConcurrentModificationException e) {
+				if (attempt == SHARD_ATTEMPTS) {
+					throw e;
+				}
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sums the shards of every counter from the given day on.
+	 * 
+	 * @return counts by counter name, by day
+	 */
+	public static Map<String, Map<String, Long>> read(String fromDay) {
+		Query query = new Query(SHARD_KIND).setFilter(new FilterPredicate("day",
+				FilterOperator.GREATER_THAN_OR_EQUAL, fromDay));
+		Map<String, Map<String, Long>> days = new TreeMap<String, Map<String, Long>>();
+		for (Entity shard : AsyncStore.prepare(query).asIterable()) {
+			String day = (String) shard.getProperty("day");
+			String name = (String) shard.getProperty("name");
+			Map<String, Long> counts = days.get(day);
+			if (counts == null) {
+				counts = new TreeMap<String, Long>();
+				days.put(day, counts);
+			}
+			Long count = counts.get(name);
+			counts.put(name, (count == null ? 0 : count) + (Long) shard.getProperty("count"));
+		}
+		return days;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> getList(Entity entity, String property) {
+		// The datastore stores an empty list as null
+		List<T> values = (List<T>) entity.getProperty(property);
+		return values == null ? new ArrayList<T>() : new ArrayList<T>(values);
+	}
+
+	/**
+	 * The UTC day a date falls on, as yyyy-MM-dd.
+	 */
+	static String day(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+}
@@ -0,0 +1,44 @@
+package com.google.glassware;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the {@link Metrics} counters as plain text, one line per counter per
+ * day. Takes an optional days parameter, the number of days back to show
+ * (default 7).
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+	private static final int DEFAULT_DAYS = 7;
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse res)
+			throws IOException {
+		int days;
+		try {
+			days = Integer.parseInt(req.getParameter("days"));
+		} catch (NumberFormatException e) {
+			days = DEFAULT_DAYS;
+		}
+		String fromDay = Metrics.day(new Date(System.currentTimeMillis()
+				- (days - 1) * DAY_MILLIS));
+
+		res.setContentType("text/plain");
+		PrintWriter writer = res.getWriter();
+		for (Map.Entry<String, Map<String, Long>> day : Metrics.read(fromDay)
+				.entrySet()) {
+			writer.println(day.getKey());
+			for (Map.Entry<String, Long> counter : day.getValue().entrySet()) {
+				writer.println("  " + counter.getKey() + " " + counter.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.google.glassware;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Adds the counts flushed by {@link Metrics} to their shards.
+ */
+@SuppressWarnings("serial")
+public class MetricsWorkerServlet extends HttpServlet {
+	private static final Logger LOG = Logger
+			.getLogger(MetricsWorkerServlet.class.getSimpleName());
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse res)
+			throws IOException {
+		String day = req.getParameter("day");
+		String[] counters = req.getParameterValues("counter");
+		if (counters == null) {
+			return;
+		}
+		String flushId = req.getParameter("flush");
+		long flushed;
+		if (flushId == null) {
+			// Queued before flushes had IDs; the task name is as unique
+			flushId = req.getHeader("X-AppEngine-TaskName");
+			flushed = System.currentTimeMillis();
+		} else {
+			flushed = Long.parseLong(req.getParameter("flushed"));
+		}
+		if (System.currentTimeMillis() - flushed > Metrics.APPLIED_WINDOW_MILLIS) {
+			// The shards may have forgotten that it was applied
+			LOG.warning("Dropping metrics flush " + flushId + " from "
+					+ new Date(flushed));
+			return;
+		}
+		for (String counter : counters) {
+			int space = counter.lastIndexOf(' ');
+			Metrics.apply(flushId, flushed, day, counter.substring(0, space),
+					Long.parseLong(counter.substring(space + 1)));
+		}
+	}
+}
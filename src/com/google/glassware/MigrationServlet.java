@@ -0,0 +1,82 @@
+package com.google.glassware;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Moves drills and sign ups saved under the old shared parents to the
+ * user's own parent (see {@link UserRecords}). An admin starts the migration
+ * from the form at /admin/migrate, which queues the first task; each task
+ * moves one page and queues the next until the old parents are empty. Moved records are named after their old ID, so a page
+ * that is moved twice is not duplicated.
+ */
+@SuppressWarnings("serial")
+public class MigrationServlet extends HttpServlet {
+	private static final Logger LOG = Logger.getLogger(MigrationServlet.class.getSimpleName());
+
+	private static final String PATH = "/tasks/migrate";
+	private static final String ADMIN_PATH = "/admin/migrate";
+	private static final int PAGE_SIZE = 200;
+
+	/**
+	 * Shows the form that starts the migration. Getting the page changes
+	 * nothing.
+	 */
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		res.setContentType("text/html");
+		res.getWriter().println("<form method=\"post\" action=\"" + ADMIN_PATH + "\">"
+				+ "<button type=\"submit\">Migrate user records</button></form>");
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+		if (ADMIN_PATH.equals(req.getServletPath())) {
+			QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(PATH));
+			res.setContentType("text/plain");
+			res.getWriter().println("Migration queued");
+			return;
+		}
+
+		int moved = migratePage(KeyFactory.createKey("Drilling", "dont know"), UserRecords.DRILLED_KIND)
+				+ migratePage(KeyFactory.createKey("UserInfo", "dont know"), UserRecords.USERINFO_KIND);
+		LOG.info("Migrated " + moved + " records");
+		if (moved > 0) {
+			QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(PATH));
+		}
+	}
+
+	private static int migratePage(Key oldParent, String kind) {
+		Query query = new Query(kind).setAncestor(oldParent);
+		List<Entity> page = AsyncStore.prepare(query).asList(FetchOptions.Builder.withLimit(PAGE_SIZE));
+
+		List<Entity> moved = new ArrayList<Entity>();
+		List<Key> oldKeys = new ArrayList<Key>();
+		for (Entity old : page) {
+			String userId = (String) old.getProperty("userId");
+			Entity entity = new Entity(kind, "migrated-" + old.getKey().getId(),
+					UserRecords.userKey(userId != null ? userId : "unknown"));
+			entity.setPropertiesFrom(old);
+			moved.add(entity);
+			oldKeys.add(old.getKey());
+		}
+		// Put before delete, so a failure in between only leaves a copy
+		AsyncStore.await(AsyncStore.put(moved));
+		AsyncStore.await(AsyncStore.delete(oldKeys));
+		return page.size();
+	}
+}
@@ -18,9 +18,13 @@ package com.google.glassware;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.appengine.http.UrlFetchTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.mirror.Mirror;
 import com.google.api.services.mirror.model.Attachment;
@@ -31,10 +35,16 @@ import com.google.api.services.mirror.model.SubscriptionsListResponse;
 import com.google.api.services.mirror.model.TimelineItem;
 import com.google.api.services.mirror.model.TimelineListResponse;
 import com.google.api.services.oauth2.model.Userinfo;
-import com.google.common.io.ByteStreams;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -46,21 +56,109 @@ public class MirrorClient {
 	private static final Logger LOG = Logger.getLogger(MirrorClient.class
 			.getSimpleName());
 
-	public static Mirror getMirror(Credential credential) {
-		return new Mirror.Builder(new UrlFetchTransport(),
-				new JacksonFactory(), credential).setApplicationName(
-				"PG Java Starter").build();
+	private static final String APPLICATION_NAME = "PG Java Starter";
+
+	/** Shared by every Mirror client; both are thread-safe. */
+	private static final HttpTransport HTTP_TRANSPORT = new UrlFetchTransport();
+	private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+	/** Client used for batch requests, which carry no credential of their own. */
+	private static final Mirror UNAUTHENTICATED_MIRROR = newMirror(null);
+
+	/**
+	 * Mirror clients keyed by user ID, each with the credential it was built
+	 * for. Idle users are evicted so the registry stays bounded no matter how
+	 * many wearers we serve.
+	 */
+	private static final Cache<String, UserMirror> MIRRORS = CacheBuilder
+			.newBuilder().maximumSize(1000)
+			.expireAfterAccess(30, TimeUnit.MINUTES).build();
+
+	/**
+	 * Attachment metadata keyed by user, timeline item and attachment ID, as
+	 * {@link AttachmentCache} keys its entries, so one user's lookup never
+	 * answers another's. Attachments that are still being processed are not
+	 * cached.
+	 */
+	private static final Cache<String, Attachment> ATTACHMENTS = CacheBuilder
+			.newBuilder().maximumSize(5000)
+			.expireAfterWrite(30, TimeUnit.MINUTES).build();
+
+	/**
+	 * Attachments up to this size of known length go in one request. URL
+	 * Fetch takes request bodies of up to 10MB; this leaves room for the
+	 * item's JSON and the multipart framing.
+	 */
+	static final long DIRECT_UPLOAD_MAX_BYTES = 8 * 1024 * 1024;
+
+	/** Size of each request of a resumable upload; a multiple of 256KB. */
+	static final int UPLOAD_CHUNK_SIZE = 4 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+
+	public static HttpTransport getHttpTransport() {
+		return HTTP_TRANSPORT;
 	}
 
-	public static Contact insertContact(Credential credential, Contact contact)
-			throws IOException {
-		Mirror.Contacts contacts = getMirror(credential).contacts();
+	public static JsonFactory getJsonFactory() {
+		return JSON_FACTORY;
+	}
+
+	private static class UserMirror {
+		private final Credential credential;
+		private final Mirror mirror;
+
+		UserMirror(Credential credential) {
+			this.credential = credential;
+			this.mirror = newMirror(credential);
+		}
+	}
+
+	/**
+	 * Returns a Mirror client for the user, reusing the one built earlier for
+	 * them when it was built for the same credential.
+	 * 
+	 * @param credential
+	 *            the user's credential, or null for an unauthenticated client
+	 * @param userId
+	 *            the user the credential belongs to
+	 */
+	public static Mirror getMirror(final Credential credential, String userId) {
+		if (credential == null) {
+			return UNAUTHENTICATED_MIRROR;
+		}
+		try {
+			UserMirror userMirror = MIRRORS.get(userId,
+					new Callable<UserMirror>() {
+						@Override
+						public UserMirror call() {
+							return new UserMirror(credential);
+						}
+					});
+			if (userMirror.credential != credential) {
+				// The user's credential was reloaded since
+				userMirror = new UserMirror(credential);
+				MIRRORS.put(userId, userMirror);
+			}
+			return userMirror.mirror;
+		} catch (ExecutionException e) {
+			// newMirror does not throw checked exceptions
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static Mirror newMirror(Credential credential) {
+		return new Mirror.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
+				.setApplicationName(APPLICATION_NAME).build();
+	}
+
+	public static Contact insertContact(Credential credential,
+			String userId, Contact contact) throws IOException {
+		Mirror.Contacts contacts = getMirror(credential, userId).contacts();
 		return contacts.insert(contact).execute();
 	}
 
-	public static void deleteContact(Credential credential, String contactId)
-			throws IOException {
-		Mirror.Contacts contacts = getMirror(credential).contacts();
+	public static void deleteContact(Credential credential, String userId,
+			String contactId) throws IOException {
+		Mirror.Contacts contacts = getMirror(credential, userId).contacts();
 		contacts.delete(contactId).execute();
 	}
 
@@ -70,16 +168,16 @@ public class MirrorClient {
 		return userInfo;
 	}
 
-	public static ContactsListResponse listContacts(Credential credential)
-			throws IOException {
-		Mirror.Contacts contacts = getMirror(credential).contacts();
+	public static ContactsListResponse listContacts(Credential credential,
+			String userId) throws IOException {
+		Mirror.Contacts contacts = getMirror(credential, userId).contacts();
 		return contacts.list().execute();
 	}
 
-	public static Contact getContact(Credential credential, String id)
-			throws IOException {
+	public static Contact getContact(Credential credential, String userId,
+			String id) throws IOException {
 		try {
-			Mirror.Contacts contacts = getMirror(credential).contacts();
+			Mirror.Contacts contacts = getMirror(credential, userId).contacts();
 			return contacts.get(id).execute();
 		} catch (GoogleJsonResponseException e) {
 			LOG.warning("Could not find contact with ID " + id);
@@ -88,11 +186,23 @@ public class MirrorClient {
 	}
 
 	public static TimelineListResponse listItems(Credential credential,
-			long count) throws IOException {
-		Mirror.Timeline timelineItems = getMirror(credential).timeline();
+			String userId, long count) throws IOException {
+		Mirror.Timeline timelineItems = getMirror(credential, userId)
+				.timeline();
 		Mirror.Timeline.List list = timelineItems.list();
 		list.setMaxResults(count);
-		return list.execute();
+		TimelineListResponse response = list.execute();
+		// Listed items carry their attachments' metadata; keep it
+		if (response.getItems() != null) {
+			for (TimelineItem item : response.getItems()) {
+				if (item.getAttachments() != null) {
+					for (Attachment attachment : item.getAttachments()) {
+						cacheAttachment(userId, item.getId(), attachment);
+					}
+				}
+			}
+		}
+		return response;
 	}
 
 	/**
@@ -114,21 +224,21 @@ public class MirrorClient {
 		subscription.setCallbackUrl(callbackUrl);
 		subscription.setUserToken(userId);
 
-		return getMirror(credential).subscriptions().insert(subscription)
+		return getMirror(credential, userId).subscriptions().insert(subscription)
 				.execute();
 	}
 
 	/**
 	 * Subscribes to notifications on the user's timeline.
 	 */
-	public static void deleteSubscription(Credential credential, String id)
-			throws IOException {
-		getMirror(credential).subscriptions().delete(id).execute();
+	public static void deleteSubscription(Credential credential,
+			String userId, String id) throws IOException {
+		getMirror(credential, userId).subscriptions().delete(id).execute();
 	}
 
 	public static SubscriptionsListResponse listSubscriptions(
-			Credential credential) throws IOException {
-		Mirror.Subscriptions subscriptions = getMirror(credential)
+			Credential credential, String userId) throws IOException {
+		Mirror.Subscriptions subscriptions = getMirror(credential, userId)
 				.subscriptions();
 		return subscriptions.list().execute();
 	}
@@ -138,12 +248,14 @@ public class MirrorClient {
 	 * 
 	 * @param credential
 	 *            the user's credential
+	 * @param userId
+	 *            the user the credential belongs to
 	 * @param item
 	 *            the item to insert
 	 */
 	public static TimelineItem insertTimelineItem(Credential credential,
-			TimelineItem item) throws IOException {
-		return getMirror(credential).timeline().insert(item).execute();
+			String userId, TimelineItem item) throws IOException {
+		return getMirror(credential, userId).timeline().insert(item).execute();
 	}
 
 	/**
@@ -151,28 +263,33 @@ public class MirrorClient {
 	 * 
 	 * @param credential
 	 *            the user's credential
+	 * @param userId
+	 *            the user the credential belongs to
 	 * @param item
 	 *            the item to insert
 	 * @param attachmentContentType
 	 *            the MIME type of the attachment (or null if none)
 	 * @param attachmentData
 	 *            data for the attachment (or null if none)
+	 * @return the inserted item
 	 */
-	public static void insertTimelineItem(Credential credential,
-			TimelineItem item, String attachmentContentType,
+	public static TimelineItem insertTimelineItem(Credential credential,
+			String userId, TimelineItem item, String attachmentContentType,
 			byte[] attachmentData) throws IOException {
-		Mirror.Timeline timeline = getMirror(credential).timeline();
-		timeline.insert(item,
+		Mirror.Timeline timeline = getMirror(credential, userId).timeline();
+		return timeline.insert(item,
 				new ByteArrayContent(attachmentContentType, attachmentData))
 				.execute();
-
 	}
 
 	/**
-	 * Inserts an item with an attachment provided as an input stream.
+	 * Inserts an item with an attachment provided as an input stream of
+	 * unknown length.
 	 * 
 	 * @param credential
 	 *            the user's credential
+	 * @param userId
+	 *            the user the credential belongs to
 	 * @param item
 	 *            the item to insert
 	 * @param attachmentContentType
@@ -181,33 +298,122 @@ public class MirrorClient {
 	 *            input stream for the attachment (or null if none)
 	 */
 	public static void insertTimelineItem(Credential credential,
-			TimelineItem item, String attachmentContentType,
+			String userId, TimelineItem item, String attachmentContentType,
 			InputStream attachmentInputStream) throws IOException {
-		insertTimelineItem(credential, item, attachmentContentType,
-				ByteStreams.toByteArray(attachmentInputStream));
+		insertTimelineItem(credential, userId, item, attachmentContentType,
+				attachmentInputStream, -1);
+	}
+
+	/**
+	 * Inserts an item with an attachment provided as an input stream, which
+	 * is read as it is uploaded and then closed. This does not bound memory:
+	 * URL Fetch buffers every request and response in full, so the stream's
+	 * source is usually in memory already. Attachments of known length that
+	 * fit in one URL Fetch request go in one request. Only larger ones, or
+	 * ones of unknown length, take the extra round trips of a resumable
+	 * upload in {@link #UPLOAD_CHUNK_SIZE} chunks.
+	 * 
+	 * @param attachmentLength
+	 *            length of the attachment in bytes, or -1 if not known
+	 */
+	public static void insertTimelineItem(Credential credential,
+			String userId, TimelineItem item, String attachmentContentType,
+			InputStream attachmentInputStream, long attachmentLength)
+			throws IOException {
+		InputStreamContent content = new InputStreamContent(
+				attachmentContentType, attachmentInputStream);
+		if (attachmentLength >= 0) {
+			content.setLength(attachmentLength);
+		}
+		Mirror.Timeline.Insert insert = getMirror(credential, userId)
+				.timeline().insert(item, content);
+		MediaHttpUploader uploader = insert.getMediaHttpUploader();
+		if (attachmentLength >= 0
+				&& attachmentLength <= DIRECT_UPLOAD_MAX_BYTES) {
+			uploader.setDirectUploadEnabled(true);
+		} else {
+			uploader.setDirectUploadEnabled(false);
+			uploader.setChunkSize(UPLOAD_CHUNK_SIZE);
+		}
+		insert.execute();
 	}
 
 	public static InputStream getAttachmentInputStream(Credential credential,
-			String timelineItemId, String attachmentId) throws IOException {
-		Mirror mirrorService = getMirror(credential);
-		Mirror.Timeline.Attachments attachments = mirrorService.timeline()
-				.attachments();
-		Attachment attachmentMetadata = attachments.get(timelineItemId,
-				attachmentId).execute();
-		HttpResponse resp = mirrorService
+			String userId, String timelineItemId, String attachmentId)
+			throws IOException {
+		return getAttachmentResponse(credential, userId, timelineItemId,
+				attachmentId).getContent();
+	}
+
+	/**
+	 * Starts downloading an attachment. The response headers give its length
+	 * when Mirror sends one.
+	 */
+	public static HttpResponse getAttachmentResponse(Credential credential,
+			String userId, String timelineItemId, String attachmentId)
+			throws IOException {
+		Attachment attachmentMetadata = getAttachment(credential, userId,
+				timelineItemId, attachmentId);
+		return getMirror(credential, userId)
 				.getRequestFactory()
 				.buildGetRequest(
 						new GenericUrl(attachmentMetadata.getContentUrl()))
 				.execute();
-		return resp.getContent();
 	}
 
 	public static String getAttachmentContentType(Credential credential,
-			String timelineItemId, String attachmentId) throws IOException {
-		Mirror.Timeline.Attachments attachments = getMirror(credential)
-				.timeline().attachments();
-		Attachment attachmentMetadata = attachments.get(timelineItemId,
-				attachmentId).execute();
-		return attachmentMetadata.getContentType();
+			String userId, String timelineItemId, String attachmentId)
+			throws IOException {
+		return getAttachment(credential, userId, timelineItemId, attachmentId)
+				.getContentType();
+	}
+
+	/**
+	 * Returns an attachment's metadata. Concurrent callers asking for the
+	 * same attachment share one request.
+	 */
+	public static Attachment getAttachment(final Credential credential,
+			final String userId, final String timelineItemId,
+			final String attachmentId) throws IOException {
+		String key = attachmentKey(userId, timelineItemId, attachmentId);
+		try {
+			Attachment attachment = ATTACHMENTS.get(key,
+					new Callable<Attachment>() {
+						@Override
+						public Attachment call() throws IOException {
+							return getMirror(credential, userId).timeline()
+									.attachments()
+									.get(timelineItemId, attachmentId)
+									.execute();
+						}
+					});
+			if (Boolean.TRUE.equals(attachment.getIsProcessingContent())) {
+				// Ask again next time; it won't be cached until it is done
+				ATTACHMENTS.invalidate(key);
+			}
+			return attachment;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	private static void cacheAttachment(String userId, String timelineItemId,
+			Attachment attachment) {
+		if (attachment.getId() != null && attachment.getContentUrl() != null
+				&& !Boolean.TRUE.equals(attachment.getIsProcessingContent())) {
+			ATTACHMENTS.put(
+					attachmentKey(userId, timelineItemId, attachment.getId()),
+					attachment);
+		}
+	}
+
+	private static String attachmentKey(String userId, String timelineItemId,
+			String attachmentId) {
+		return userId + "/" + timelineItemId + "/" + attachmentId;
 	}
 }
@@ -21,15 +21,9 @@ import com.google.api.services.mirror.model.Contact;
 import com.google.api.services.mirror.model.NotificationConfig;
 import com.google.api.services.mirror.model.Subscription;
 import com.google.api.services.mirror.model.TimelineItem;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.common.collect.Lists;
 
 import java.io.IOException;
-import java.util.Date;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -51,7 +45,7 @@ public class NewUserBootstrapper {
    * </ul>
    */
   public static void bootstrapNewUser(HttpServletRequest req, String userId) throws IOException {
-    Credential credential = AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
+    Credential credential = AuthUtil.getCredential(userId);
 
     // Create contact
     Contact starterProjectContact = new Contact();
@@ -59,7 +53,7 @@ public class NewUserBootstrapper {
     starterProjectContact.setDisplayName(MainServlet.CONTACT_NAME);
     starterProjectContact.setImageUrls(Lists.newArrayList(WebUtil.buildUrl(req,
         "/static/images/chipotle-tube-640x360.jpg")));
-    Contact insertedContact = MirrorClient.insertContact(credential, starterProjectContact);
+    Contact insertedContact = MirrorClient.insertContact(credential, userId, starterProjectContact);
     LOG.info("Bootstrapper inserted contact " + insertedContact.getId() + " for user " + userId);
 
     try {
@@ -77,7 +71,7 @@ public class NewUserBootstrapper {
     TimelineItem timelineItem = new TimelineItem();
     timelineItem.setText("Welcome to Randy Test Glass");
     timelineItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
-    TimelineItem insertedItem = MirrorClient.insertTimelineItem(credential, timelineItem);
+    TimelineItem insertedItem = MirrorClient.insertTimelineItem(credential, userId, timelineItem);
     LOG.info("Bootstrapper inserted welcome message " + insertedItem.getId() + " for user "
         + userId);
 
@@ -85,15 +79,7 @@ public class NewUserBootstrapper {
 
   }
   static void NewUserInfo(String userId, Credential credential) {
-	  Key newsPostKey = KeyFactory.createKey("UserInfo", "dont know");
-	  Date date = new Date();
-	  Entity userinfo = new Entity("userinfo", newsPostKey);
-	  userinfo.setProperty("created", date);
-	  userinfo.setProperty("userId", userId);
-	  userinfo.setProperty("accessToken", credential.getAccessToken());
-
-	  DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-	  datastore.put(userinfo);
+	  UserRecords.recordUserInfo(userId, credential.getAccessToken());
   }
 
 }
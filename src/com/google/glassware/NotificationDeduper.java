@@ -0,0 +1,111 @@
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Notification;
+import com.google.api.services.mirror.model.UserAction;
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Spots notifications that the Mirror push service delivered more than once
+ * within a time window. Recently seen notifications are remembered in a
+ * bounded in-process cache and in memcache, so a redelivery is caught even
+ * when it lands on another instance.
+ * <p>
+ * Location notifications are never treated as duplicates: every ping looks
+ * the same ("latest"), so two of them are not a redelivery.
+ * <p>
+ * A deliberate second press of the same menu item looks exactly like a
+ * redelivery (there is no delivery ID), so the window is kept short: long
+ * enough to cover Mirror's retries, short enough that a repeat press a
+ * minute later goes through.
+ */
+public class NotificationDeduper {
+	private static final Logger LOG = Logger.getLogger(NotificationDeduper.class
+			.getSimpleName());
+
+	private static final String MEMCACHE_PREFIX = "notification:";
+	private static final int MAX_LOCAL_ENTRIES = 10000;
+
+	private final int windowSeconds;
+	private final Cache<String, Boolean> seen;
+	private final MemcacheService memcache;
+
+	public NotificationDeduper(int windowSeconds) {
+		this.windowSeconds = windowSeconds;
+		this.seen = CacheBuilder.newBuilder().maximumSize(MAX_LOCAL_ENTRIES)
+				.expireAfterWrite(windowSeconds, TimeUnit.SECONDS).build();
+		this.memcache = MemcacheServiceFactory.getMemcacheService();
+		// We need to tell "already there" apart from "memcache is down"
+		this.memcache.setErrorHandler(ErrorHandlers.getStrict());
+	}
+
+	/**
+	 * Records the notification and returns whether this is the first time it
+	 * has been seen within the window.
+	 */
+	public boolean isFirstDelivery(Notification notification) {
+		if ("locations".equals(notification.getCollection())) {
+			return true;
+		}
+		String key = dedupKey(notification);
+		if (seen.getIfPresent(key) != null) {
+			return false;
+		}
+		seen.put(key, Boolean.TRUE);
+		try {
+			return memcache.put(MEMCACHE_PREFIX + key, Boolean.TRUE,
+					Expiration.byDeltaSeconds(windowSeconds),
+					MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		} catch (MemcacheServiceException e) {
+			// Better to risk a duplicate than to drop the notification
+			LOG.warning("Could not check memcache for duplicates: " + e);
+			return true;
+		}
+	}
+
+	/**
+	 * Forgets the notification, so a redelivery is processed. Used when a
+	 * notification could not be queued after all.
+	 */
+	public void forget(Notification notification) {
+		if ("locations".equals(notification.getCollection())) {
+			return;
+		}
+		String key = dedupKey(notification);
+		seen.invalidate(key);
+		try {
+			memcache.delete(MEMCACHE_PREFIX + key);
+		} catch (MemcacheServiceException e) {
+			LOG.warning("Could not forget notification: " + e);
+		}
+	}
+
+	/**
+	 * Identifies a notification by user, collection, item, operation and
+	 * user actions. Hashed to stay well within the memcache key limit.
+	 */
+	static String dedupKey(Notification notification) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(notification.getUserToken()).append('|');
+		builder.append(notification.getCollection()).append('|');
+		builder.append(notification.getItemId()).append('|');
+		builder.append(notification.getOperation());
+		if (notification.getUserActions() != null) {
+			for (UserAction action : notification.getUserActions()) {
+				builder.append('|').append(action.getType()).append(':')
+						.append(action.getPayload());
+			}
+		}
+		return Hashing.sha1().hashString(builder, Charsets.UTF_8).toString();
+	}
+}
@@ -0,0 +1,288 @@
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.mirror.Mirror;
+import com.google.api.services.mirror.model.Location;
+import com.google.api.services.mirror.model.Notification;
+import com.google.api.services.mirror.model.NotificationConfig;
+import com.google.api.services.mirror.model.Subscription;
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.api.services.mirror.model.UserAction;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Does the work for a notification received by {@link NotifyServlet}. Runs
+ * on the notify task queues, off the request thread that received it.
+ */
+public class NotificationProcessor {
+	private static final Logger LOG = Logger.getLogger(NotificationProcessor.class.getSimpleName());
+
+	/**
+	 * What gets a counter of its own. Anyone can post to /notify, so anything
+	 * else is counted as "other" rather than growing the counters without
+	 * bound.
+	 */
+	private static final Set<String> COLLECTIONS = ImmutableSet.of("locations", "timeline");
+	private static final Set<String> ACTION_TYPES = ImmutableSet.of(
+			"SHARE", "REPLY", "REPLY_ALL", "DELETE", "PIN", "UNPIN", "LAUNCH", "CUSTOM");
+	private static final Set<String> CUSTOM_PAYLOADS = ImmutableSet.of(
+			"athome", "atwork", "showhome", "showwork", "drill");
+
+	/**
+	 * Handles one notification.
+	 * 
+	 * @param notification
+	 *            the notification as posted to /notify
+	 * @param notifyUrl
+	 *            the /notify URL, for any subscriptions this needs to add
+	 */
+	public static void process(Notification notification, String notifyUrl) throws IOException {
+		LOG.info("Processing a notification with ID: " + notification.getItemId());
+
+		// Figure out the impacted user and get their credentials for API calls
+		String userId = notification.getUserToken();
+		Metrics.increment("notification:"
+				+ (COLLECTIONS.contains(notification.getCollection()) ? notification.getCollection() : "other"));
+		if (notification.getUserActions() != null) {
+			for (UserAction action : notification.getUserActions()) {
+				Metrics.increment("action:" + actionName(action));
+			}
+		}
+		Credential credential = AuthUtil.getCredential(userId);
+		Mirror mirrorClient = MirrorClient.getMirror(credential, userId);
+
+		if (notification.getCollection().equals("locations")) {
+			LOG.info("Notification of updated location");
+			// Pings from now on need a new update; this one fetches everything
+			// up to here
+			LocationCoalescer.release(userId);
+			// Read where the user was while Mirror says where they are now
+			Future<Location> previous = LocationUtil.getAsync(userId);
+			// item id is usually 'latest'
+			Location location = mirrorClient.locations().get(notification.getItemId()).execute();
+
+			LOG.info("New location is " + location.getLatitude() + ", " + location.getLongitude());
+			Location previousLocation = LocationUtil.swap(userId, previous, location);
+			LocationHistory.append(userId, location);
+
+			// A retried ping finds the arrival still pending and sends the
+			// map again; once sent it is not reported a second time
+			GeofenceTracker.Arrival arrival = LocationUtil.enterTag(userId, previousLocation, location);
+			if (arrival != null) {
+				sendMap(credential, userId, location, "You arrived at "+arrival.getTag());
+				GeofenceTracker.announced(userId, arrival);
+			}
+		} else if (notification.getCollection().equals("timeline")) {
+			// Start reading the location a custom action needs while Mirror
+			// fetches the item
+			List<UserAction> actions = notification.getUserActions();
+			if (actions == null) {
+				LOG.info("Timeline notification with no user actions; ignoring it");
+				return;
+			}
+			Future<Location> pendingLocation = null;
+			if (actions.contains(new UserAction().setType("CUSTOM").setPayload("athome"))
+					|| actions.contains(new UserAction().setType("CUSTOM").setPayload("atwork"))) {
+				pendingLocation = LocationUtil.getAsync(userId);
+			} else if (actions.contains(new UserAction().setType("CUSTOM").setPayload("showhome"))) {
+				pendingLocation = LocationUtil.getTagAsync(userId, "home");
+			} else if (actions.contains(new UserAction().setType("CUSTOM").setPayload("showwork"))) {
+				pendingLocation = LocationUtil.getTagAsync(userId, "work");
+			}
+
+			// Get the impacted timeline item
+			TimelineItem timelineItem = mirrorClient.timeline().get(notification.getItemId()).execute();
+			LOG.info("Notification impacted timeline item with ID: " + timelineItem.getId());
+
+			// If it was a share, and contains a photo, bounce it back to the
+			// user.
+			if (notification.getUserActions().contains(new UserAction().setType("SHARE")) && timelineItem.getAttachments() != null
+					&& timelineItem.getAttachments().size() > 0) {
+				LOG.info("It was a share of a photo. Sending the photo back to the user.");
+
+				// Get the first attachment
+				String attachmentId = timelineItem.getAttachments().get(0).getId();
+				LOG.info("Found attachment with ID " + attachmentId);
+
+				// Create a new timeline item with the attachment
+				TimelineItem echoPhotoItem = new TimelineItem();
+				echoPhotoItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
+				echoPhotoItem.setText("Echoing your shared photo");
+
+				// Reuse the content if this photo has been seen before
+				AttachmentCache.Metadata cached = AttachmentCache.getMetadata(userId, timelineItem.getId(), attachmentId);
+				byte[] content = cached != null ? AttachmentCache.getContent(cached.getDigest()) : null;
+				HttpResponse attachment = null;
+				if (content == null) {
+					attachment = MirrorClient.getAttachmentResponse(credential, userId, timelineItem.getId(), attachmentId);
+					Long length = attachment.getHeaders().getContentLength();
+					if (length != null && length <= ImageScaler.MAX_INPUT_BYTES) {
+						content = ByteStreams.toByteArray(attachment.getContent());
+						if (length <= AttachmentCache.MAX_CACHED_BYTES) {
+							// Small enough to keep for next time
+							AttachmentCache.put(userId, timelineItem.getId(), attachmentId,
+									attachment.getContentType() != null ? attachment.getContentType() : "image/jpeg", content);
+						}
+					}
+				}
+
+				if (content != null) {
+					// Send it at the size Glass shows it
+					String contentType = ImageScaler.contentTypeOf(content);
+					MirrorClient.insertTimelineItem(credential, userId, echoPhotoItem, contentType != null ? contentType
+							: "image/jpeg", ImageScaler.scaleForGlass(content));
+				} else {
+					// Too big to scale, it is streamed straight back up
+					Long length = attachment.getHeaders().getContentLength();
+					MirrorClient.insertTimelineItem(credential, userId, echoPhotoItem, "image/jpeg", attachment.getContent(),
+							length != null ? length : -1);
+				}
+
+			}
+			if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("athome"))) {
+				LOG.info("custom at home");
+
+				Location location = AsyncStore.await(pendingLocation);
+				if (location != null) {
+					LOG.info("got location");
+					LocationUtil.saveTag(userId, location, "home");
+				} else {
+					LOG.info("missing location");
+					checkLocationSubscription(credential, userId, notifyUrl);
+				}
+			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("atwork"))) {
+				LOG.info("custom at work");
+
+				Location location = AsyncStore.await(pendingLocation);
+				if (location != null) {
+					LOG.info("got location");
+					LocationUtil.saveTag(userId, location, "work");
+				} else {
+					LOG.info("missing location");
+				}
+			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("showhome"))) {
+				Location location = AsyncStore.await(pendingLocation);
+				if (location != null) {
+					LOG.info("show home got location");
+					sendMap(credential, userId, location, "Home");
+				}
+			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("showwork"))) {
+				Location location = AsyncStore.await(pendingLocation);
+				if (location != null) {
+					LOG.info("show work got location");
+					sendMap(credential, userId, location, "Work");
+				}
+			} else if (notification.getUserActions().contains(new UserAction().setType("REPLY"))) {
+				LOG.info("got a REPLY: " + timelineItem.getText());
+				Pattern pattern = Pattern.compile("^remind me to (.*) at ([a-z]+)$");
+				Matcher matcher = pattern.matcher(timelineItem.getText());
+				if (matcher.find()) {
+					String action = matcher.group(1);
+					String tag = matcher.group(2);
+					LOG.info("matched: " + action + " at " + tag);
+				}
+			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("drill"))) {
+				LOG.info("custom drill");
+				TimelineItem drillItem = new TimelineItem();
+				drillItem.setText("Drill, baby drill!");
+				drillItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
+
+				try {
+					MirrorClient.insertTimelineItem(credential, userId, drillItem, "image/jpeg",
+							ImageScaler.scaleForGlass(MediaStore.getAsset(MediaStore.DRILL_IMAGE)));
+				} catch (Exception e) {
+					LOG.info("Couldn't get URL");
+					MirrorClient.insertTimelineItem(credential, userId, drillItem);
+				}
+
+				UserRecords.recordDrill(userId, timelineItem.getId());
+
+			} else {
+				LOG.warning("I don't know what to do with this notification, so I'm ignoring it." + notification.getUserActions());
+			}
+		}
+	}
+
+	/** The counter name for an action, from {@link #ACTION_TYPES} and {@link #CUSTOM_PAYLOADS}. */
+	private static String actionName(UserAction action) {
+		if (!ACTION_TYPES.contains(action.getType())) {
+			return "other";
+		}
+		if (!"CUSTOM".equals(action.getType())) {
+			return action.getType();
+		}
+		return "CUSTOM:" + (CUSTOM_PAYLOADS.contains(action.getPayload()) ? action.getPayload() : "other");
+	}
+
+	private static void checkLocationSubscription(Credential credential, String userId, String notifyUrl) {
+		boolean locationSubscriptionExists = false;
+
+		// Mirror glass = MirrorClient.getMirror(credential, userId);
+		List<Subscription> subscriptions;
+		try {
+			subscriptions = MirrorClient.listSubscriptions(credential, userId).getItems();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		LOG.info("subscriptions = " + subscriptions);
+		if (subscriptions != null) {
+			for (Subscription subscription : subscriptions) {
+				if (subscription.getId().equals("locations")) {
+					locationSubscriptionExists = true;
+				}
+			}
+		}
+		if (locationSubscriptionExists == false) {
+			LOG.info("need to add a subscription to location");
+			try {
+				MirrorClient.insertSubscription(credential, notifyUrl, userId, "locations");
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+
+		}
+	}
+
+	private static void sendMap(Credential credential, String userId, Location location, String name) throws IOException {
+
+		TimelineItem locationMap = new TimelineItem();
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("<article>\n");
+		builder.append("<figure>\n");
+		builder.append("<img src=\"glass://map?w=240&h=360&marker=0;");
+		builder.append(location.getLatitude());
+		builder.append(",");
+		builder.append(location.getLongitude());
+		builder.append("\" height=\"360\" width=\"240\">");
+		builder.append("</figure>\n");
+		builder.append("<section>\n");
+		builder.append("<div class=\"text-auto-size\">");
+		builder.append(name);
+		builder.append("</div>\n");
+		builder.append("</section>\n");
+		builder.append("<footer>");
+		builder.append("<div>");
+		builder.append("Randy Glass Test");
+		builder.append("</div>");
+		builder.append("</footer>\n");
+		builder.append("</article>");
+		locationMap.setHtml(builder.toString());
+		LOG.info("html=" + builder.toString());
+		locationMap.setTitle(name);
+		locationMap.setNotification(new NotificationConfig().setLevel("DEFAULT"));
+		MirrorClient.insertTimelineItem(credential, userId, locationMap);
+	}
+}
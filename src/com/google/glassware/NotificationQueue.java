@@ -0,0 +1,47 @@
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Notification;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+
+/**
+ * Hands notifications from {@link NotifyServlet} to
+ * {@link NotifyWorkerServlet} through the task queue. Each collection has
+ * its own queue in queue.xml, which sets how many of its notifications are
+ * processed at once.
+ */
+public class NotificationQueue {
+	static final String WORKER_PATH = "/tasks/notify";
+
+	private static final String QUEUE_PREFIX = "notify-";
+
+	/**
+	 * Queues a notification for processing.
+	 * 
+	 * @param notifyUrl
+	 *            the /notify URL, for any subscriptions processing adds
+	 * @param delayMillis
+	 *            how long to wait before processing it
+	 */
+	public static void enqueue(Notification notification, String notifyUrl,
+			long delayMillis) throws IOException {
+		getQueue(notification.getCollection()).add(
+				TaskOptions.Builder
+						.withUrl(WORKER_PATH)
+						.param("notification",
+								MirrorClient.getJsonFactory().toString(
+										notification))
+						.param("notifyUrl", notifyUrl)
+						.countdownMillis(delayMillis));
+	}
+
+	private static Queue getQueue(String collection) {
+		if ("timeline".equals(collection) || "locations".equals(collection)) {
+			return QueueFactory.getQueue(QUEUE_PREFIX + collection);
+		}
+		return QueueFactory.getDefaultQueue();
+	}
+}
@@ -15,34 +15,16 @@
  */
 package com.google.glassware;
 
-import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson.JacksonFactory;
-import com.google.api.services.mirror.Mirror;
-import com.google.api.services.mirror.model.Location;
 import com.google.api.services.mirror.model.Notification;
-import com.google.api.services.mirror.model.NotificationConfig;
-import com.google.api.services.mirror.model.Subscription;
-import com.google.api.services.mirror.model.TimelineItem;
-import com.google.api.services.mirror.model.UserAction;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.io.ByteStreams;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Writer;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.Date;
-import java.util.List;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -50,7 +32,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Handles the notifications sent back from subscriptions
+ * Receives the notifications sent back from subscriptions and queues them for
+ * {@link NotificationProcessor}
  * 
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
@@ -58,222 +41,176 @@ import javax.servlet.http.HttpServletResponse;
 public class NotifyServlet extends HttpServlet {
 	private static final Logger LOG = Logger.getLogger(MainServlet.class.getSimpleName());
 
-	@Override
-	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		// Respond with OK and status 200 in a timely fashion to prevent
-		// redelivery
-		response.setContentType("text/html");
-		Writer writer = response.getWriter();
-		writer.append("OK");
-		writer.close();
-
-		// Get the notification object from the request body (into a string so
-		// we
-		// can log it)
-		BufferedReader notificationReader = new BufferedReader(new InputStreamReader(request.getInputStream()));
-		String notificationString = "";
+	/** Largest notification body we will parse, unless set in web.xml. */
+	private static final int DEFAULT_MAX_PAYLOAD_BYTES = 64 * 1024;
 
-		// Count the lines as a very basic way to prevent Denial of Service
-		// attacks
-		int lines = 0;
-		while (notificationReader.ready()) {
-			notificationString += notificationReader.readLine();
-			lines++;
+	private int maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
 
-			// No notification would ever be this long. Something is very wrong.
-			if (lines > 1000) {
-				throw new IOException("Attempted to parse notification payload that was unexpectedly long.");
-			}
-		}
-
-		LOG.info("got raw notification " + notificationString);
+	/** Fraction of raw notification bodies to log, 0 to log none. */
+	private double rawLogSampleRate = 0;
 
-		JsonFactory jsonFactory = new JacksonFactory();
+	/**
+	 * How long a notification is remembered to spot redeliveries. Short, so
+	 * that pressing the same menu item again a minute later is not dropped.
+	 */
+	private static final int DEFAULT_DEDUP_WINDOW_SECONDS = 60;
 
-		// If logging the payload is not as important, use
-		// jacksonFactory.fromInputStream instead.
-		Notification notification = jsonFactory.fromString(notificationString, Notification.class);
+	private NotificationDeduper deduper;
 
-		LOG.info("Got a notification with ID: " + notification.getItemId());
+	/** How long location pings for a user are gathered into one update. */
+	private static final int DEFAULT_LOCATION_COALESCE_SECONDS = 15;
 
-		// Figure out the impacted user and get their credentials for API calls
-		String userId = notification.getUserToken();
-		Credential credential = AuthUtil.getCredential(userId);
-		Mirror mirrorClient = MirrorClient.getMirror(credential);
+	private int locationCoalesceSeconds = DEFAULT_LOCATION_COALESCE_SECONDS;
 
-		if (notification.getCollection().equals("locations")) {
-			LOG.info("Notification of updated location");
-			Mirror glass = MirrorClient.getMirror(credential);
-			// item id is usually 'latest'
-			Location location = glass.locations().get(notification.getItemId()).execute();
+	/**
+	 * Thrown when a notification body is bigger than maxPayloadBytes.
+	 */
+	@SuppressWarnings("serial")
+	private static class PayloadTooLargeException extends IOException {
+		PayloadTooLargeException(long limit) {
+			super("Attempted to parse notification payload over " + limit
+					+ " bytes");
+		}
+	}
 
-			LOG.info("New location is " + location.getLatitude() + ", " + location.getLongitude());
-			Location previousLocation = LocationUtil.get(userId);
-			LocationUtil.save(userId, location);
+	/**
+	 * Stops a read once more than the limit has been read, so a huge body
+	 * is never pulled into memory.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private final long limit;
+		private long count = 0;
+
+		BoundedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
 
-			String enteredTag = LocationUtil.enterTag(userId, previousLocation, location);
-			if (enteredTag != null) {
-				sendMap(credential, userId, location, "You arrived at "+enteredTag);
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count(1);
 			}
-		} else if (notification.getCollection().equals("timeline")) {
-			// Get the impacted timeline item
-			TimelineItem timelineItem = mirrorClient.timeline().get(notification.getItemId()).execute();
-			LOG.info("Notification impacted timeline item with ID: " + timelineItem.getId());
-
-			// If it was a share, and contains a photo, bounce it back to the
-			// user.
-			if (notification.getUserActions().contains(new UserAction().setType("SHARE")) && timelineItem.getAttachments() != null
-					&& timelineItem.getAttachments().size() > 0) {
-				LOG.info("It was a share of a photo. Sending the photo back to the user.");
-
-				// Get the first attachment
-				String attachmentId = timelineItem.getAttachments().get(0).getId();
-				LOG.info("Found attachment with ID " + attachmentId);
-
-				// Get the attachment content
-				InputStream stream = MirrorClient.getAttachmentInputStream(credential, timelineItem.getId(), attachmentId);
-
-				// Create a new timeline item with the attachment
-				TimelineItem echoPhotoItem = new TimelineItem();
-				echoPhotoItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
-				echoPhotoItem.setText("Echoing your shared photo");
-
-				MirrorClient.insertTimelineItem(credential, echoPhotoItem, "image/jpeg", stream);
+			return b;
+		}
 
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count(read);
 			}
-			if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("athome"))) {
-				LOG.info("custom at home");
-
-				Location location = LocationUtil.get(userId);
-				if (location != null) {
-					LOG.info("got location");
-					LocationUtil.saveTag(userId, location, "home");
-				} else {
-					LOG.info("missing location");
-					checkLocationSubscription(credential, userId, request);
-				}
-			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("atwork"))) {
-				LOG.info("custom at work");
-
-				Location location = LocationUtil.get(userId);
-				if (location != null) {
-					LOG.info("got location");
-					LocationUtil.saveTag(userId, location, "work");
-				} else {
-					LOG.info("missing location");
-				}
-			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("showhome"))) {
-				Location location = LocationUtil.getTag(userId, "home");
-				if (location != null) {
-					LOG.info("show home got location");
-					sendMap(credential, userId, location, "Home");
-				}
-			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("showwork"))) {
-				Location location = LocationUtil.getTag(userId, "work");
-				if (location != null) {
-					LOG.info("show work got location");
-					sendMap(credential, userId, location, "Work");
-				}
-			} else if (notification.getUserActions().contains(new UserAction().setType("REPLY"))) {
-				LOG.info("got a REPLY: " + timelineItem.getText());
-				Pattern pattern = Pattern.compile("^remind me to (.*) at ([a-z]+)$");
-				Matcher matcher = pattern.matcher(timelineItem.getText());
-				if (matcher.find()) {
-					String action = matcher.group(1);
-					String tag = matcher.group(2);
-					LOG.info("matched: " + action + " at " + tag);
-				}
-			} else if (notification.getUserActions().contains(new UserAction().setType("CUSTOM").setPayload("drill"))) {
-				LOG.info("custom drill");
-				TimelineItem drillItem = new TimelineItem();
-				drillItem.setText("Drill, baby drill!");
-				drillItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
-
-				try {
-					URL url = new URL("http://nazret.com/blog/media/blogs/new/oil_drill2042909.jpg");
-					URLConnection connection1 = url.openConnection();
-
-					MirrorClient.insertTimelineItem(credential, drillItem, "image/jpeg", connection1.getInputStream());
-				} catch (Exception e) {
-					LOG.info("Couldn't get URL");
-					MirrorClient.insertTimelineItem(credential, drillItem);
-				}
-
-				Key drilledKey = KeyFactory.createKey("Drilling", "dont know");
-				Date date = new Date();
-				Entity drilled = new Entity("drilled", drilledKey);
-				drilled.setProperty("userId", userId);
-				drilled.setProperty("date", date);
-				drilled.setProperty("timelineId", timelineItem.getId());
-
-				DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-				datastore.put(drilled);
+			return read;
+		}
 
-			} else {
-				LOG.warning("I don't know what to do with this notification, so I'm ignoring it." + notification.getUserActions());
+		private void count(int read) throws PayloadTooLargeException {
+			count += read;
+			if (count > limit) {
+				throw new PayloadTooLargeException(limit);
 			}
 		}
 	}
 
-	private void checkLocationSubscription(Credential credential, String userId, HttpServletRequest req) {
-		boolean locationSubscriptionExists = false;
+	@Override
+	public void init() throws ServletException {
+		String maxPayloadBytesParam = getInitParameter("maxPayloadBytes");
+		if (maxPayloadBytesParam != null) {
+			maxPayloadBytes = Integer.parseInt(maxPayloadBytesParam);
+		}
+		String rawLogSampleRateParam = getInitParameter("rawLogSampleRate");
+		if (rawLogSampleRateParam != null) {
+			rawLogSampleRate = Double.parseDouble(rawLogSampleRateParam);
+		}
+		int dedupWindowSeconds = DEFAULT_DEDUP_WINDOW_SECONDS;
+		String dedupWindowParam = getInitParameter("dedupWindowSeconds");
+		if (dedupWindowParam != null) {
+			dedupWindowSeconds = Integer.parseInt(dedupWindowParam);
+		}
+		deduper = new NotificationDeduper(dedupWindowSeconds);
+		String locationCoalesceParam = getInitParameter("locationCoalesceSeconds");
+		if (locationCoalesceParam != null) {
+			locationCoalesceSeconds = Integer.parseInt(locationCoalesceParam);
+		}
+	}
 
-		// Mirror glass = MirrorClient.getMirror(credential);
-		List<Subscription> subscriptions;
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		Notification notification = null;
 		try {
-			subscriptions = MirrorClient.listSubscriptions(credential).getItems();
-		} catch (IOException e) {
-			e.printStackTrace();
-			return;
-		}
-		LOG.info("subscriptions = " + subscriptions);
-		if (subscriptions != null) {
-			for (Subscription subscription : subscriptions) {
-				if (subscription.getId().equals("locations")) {
-					locationSubscriptionExists = true;
-				}
-			}
+			notification = parseNotification(request);
+		} catch (PayloadTooLargeException e) {
+			// No notification would ever be this long. Something is very wrong.
+			LOG.warning(e.getMessage());
 		}
-		if (locationSubscriptionExists == false) {
-			LOG.info("need to add a subscription to location");
-			try {
-				MirrorClient.insertSubscription(credential, WebUtil.buildUrl(req, "/notify"), userId, "locations");
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
 
+		// Broken notifications are still answered with OK: redelivering them
+		// would not help
+		if (notification != null && (notification.getUserToken() == null || notification.getCollection() == null)) {
+			LOG.warning("Ignoring notification without a user token or collection");
+		} else if (notification != null && !deduper.isFirstDelivery(notification)) {
+			LOG.info("Ignoring redelivered notification with ID: " + notification.getItemId());
+			Metrics.increment("notify:duplicate");
+		} else if (notification != null && isLocation(notification)
+				&& !LocationCoalescer.claim(notification.getUserToken(), locationCoalesceSeconds)) {
+			LOG.info("Location update for " + notification.getUserToken() + " is already pending");
+			Metrics.increment("notify:coalesced");
+		} else if (notification != null) {
+			LOG.info("Got a notification with ID: " + notification.getItemId());
+			enqueue(notification, request);
+			Metrics.increment("notify:queued");
 		}
+
+		// Respond with OK and status 200 in a timely fashion to prevent
+		// redelivery. The work itself happens on the task queue.
+		response.setContentType("text/html");
+		Writer writer = response.getWriter();
+		writer.append("OK");
+		writer.close();
 	}
 
-	private void sendMap(Credential credential, String userId, Location location, String name) throws IOException {
+	private void enqueue(Notification notification, HttpServletRequest request) throws IOException {
+		// Give a burst of location pings time to arrive so they are handled
+		// as one
+		long delayMillis = isLocation(notification) ? locationCoalesceSeconds * 1000L : 0;
+		boolean queued = false;
+		try {
+			NotificationQueue.enqueue(notification, WebUtil.buildUrl(request, "/notify"), delayMillis);
+			queued = true;
+		} finally {
+			if (!queued) {
+				// Let the redelivery through
+				deduper.forget(notification);
+				if (isLocation(notification)) {
+					LocationCoalescer.release(notification.getUserToken());
+				}
+			}
+		}
+	}
 
-		TimelineItem locationMap = new TimelineItem();
+	private static boolean isLocation(Notification notification) {
+		return "locations".equals(notification.getCollection());
+	}
 
-		StringBuilder builder = new StringBuilder();
-		builder.append("<article>\n");
-		builder.append("<figure>\n");
-		builder.append("<img src=\"glass://map?w=240&h=360&marker=0;");
-		builder.append(location.getLatitude());
-		builder.append(",");
-		builder.append(location.getLongitude());
-		builder.append("\" height=\"360\" width=\"240\">");
-		builder.append("</figure>\n");
-		builder.append("<section>\n");
-		builder.append("<div class=\"text-auto-size\">");
-		builder.append(name);
-		builder.append("</div>\n");
-		builder.append("</section>\n");
-		builder.append("<footer>");
-		builder.append("<div>");
-		builder.append("Randy Glass Test");
-		builder.append("</div>");
-		builder.append("</footer>\n");
-		builder.append("</article>");
-		locationMap.setHtml(builder.toString());
-		LOG.info("html=" + builder.toString());
-		locationMap.setTitle(name);
-		locationMap.setNotification(new NotificationConfig().setLevel("DEFAULT"));
-		MirrorClient.insertTimelineItem(credential, locationMap);
+	/**
+	 * Parses the notification straight from the request body. Only a sample
+	 * of the bodies is buffered, so it can be logged.
+	 */
+	private Notification parseNotification(HttpServletRequest request)
+			throws IOException {
+		if (request.getContentLength() > maxPayloadBytes) {
+			throw new PayloadTooLargeException(maxPayloadBytes);
+		}
+		InputStream body = new BoundedInputStream(request.getInputStream(),
+				maxPayloadBytes);
+		JsonFactory jsonFactory = MirrorClient.getJsonFactory();
+
+		if (rawLogSampleRate > 0 && Math.random() < rawLogSampleRate) {
+			byte[] raw = ByteStreams.toByteArray(body);
+			LOG.info("got raw notification " + new String(raw, "UTF-8"));
+			return jsonFactory.fromInputStream(new ByteArrayInputStream(raw),
+					Notification.class);
+		}
+		return jsonFactory.fromInputStream(body, Notification.class);
 	}
 }
@@ -0,0 +1,31 @@
+package com.google.glassware;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.mirror.model.Notification;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the notifications queued by {@link NotificationQueue}. Throwing makes
+ * the task queue retry the notification.
+ */
+@SuppressWarnings("serial")
+public class NotifyWorkerServlet extends HttpServlet {
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse res)
+			throws IOException {
+		Notification notification = MirrorClient.getJsonFactory().fromString(
+				req.getParameter("notification"), Notification.class);
+		try {
+			NotificationProcessor.process(notification,
+					req.getParameter("notifyUrl"));
+		} catch (GoogleJsonResponseException e) {
+			Metrics.increment("mirror-error:" + e.getStatusCode());
+			throw e;
+		}
+	}
+}
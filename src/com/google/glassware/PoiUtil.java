@@ -0,0 +1,148 @@
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Location;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Shared points of interest (stores, sites, venues) that act as tags for
+ * every user. POIs are root entities with an indexed geohash, so a region
+ * loads with one query for the geohash prefix and saving POIs never contends
+ * on a shared parent. Regions are indexed in memory the first time a location
+ * inside them is checked.
+ */
+public class PoiUtil {
+	private static final Logger LOG = Logger.getLogger(PoiUtil.class.getSimpleName());
+
+	private static final String KIND = PoiUtil.class.getName();
+
+	/** Geohash length of a region; a region is about 24 by 12 miles. */
+	private static final int REGION_PRECISION = 4;
+
+	/** Geohash length saved with each POI; about 16 by 16 feet. */
+	private static final int POI_PRECISION = 9;
+
+	/**
+	 * POIs fetched per query while loading a region. Every POI in the region
+	 * is loaded, a page at a time, so dense regions are never cut short.
+	 */
+	private static final int REGION_PAGE_SIZE = 500;
+
+	private static final Cache<String, GeofenceIndex> REGIONS = CacheBuilder.newBuilder().maximumSize(2000)
+			.expireAfterWrite(30, TimeUnit.MINUTES).build();
+
+	/**
+	 * Saves a point of interest.
+	 * 
+	 * @param name
+	 *            reported to users who arrive at it
+	 */
+	public static void savePoi(String name, double latitude, double longitude) {
+		String geohash = GeoHash.encode(latitude, longitude, POI_PRECISION);
+		String region = geohash.substring(0, REGION_PRECISION);
+		Entity entity = new Entity(KIND);
+		entity.setProperty("name", name);
+		entity.setProperty("geohash", geohash);
+		entity.setUnindexedProperty("latitude", latitude);
+		entity.setUnindexedProperty("longitude", longitude);
+
+		AsyncStore.await(AsyncStore.put(entity));
+		REGIONS.invalidate(region);
+		LOG.info("Saved point of interest " + name + " in region " + region);
+	}
+
+	/**
+	 * Returns the closest point of interest within the given radius of the
+	 * location, or null if there is none.
+	 */
+	public static LocationTag find(Location location, double radiusMiles) {
+		// Check every region the radius around the point reaches into
+		double latitude = location.getLatitude();
+		double longitude = location.getLongitude();
+		double latitudeDelta = GeoMath.latitudeDegrees(radiusMiles);
+		double longitudeDelta = GeoMath.longitudeDegrees(radiusMiles, latitude);
+		Set<String> regions = new LinkedHashSet<String>();
+		regions.add(GeoHash.encode(latitude, longitude, REGION_PRECISION));
+		regions.add(GeoHash.encode(latitude - latitudeDelta, longitude - longitudeDelta, REGION_PRECISION));
+		regions.add(GeoHash.encode(latitude - latitudeDelta, longitude + longitudeDelta, REGION_PRECISION));
+		regions.add(GeoHash.encode(latitude + latitudeDelta, longitude - longitudeDelta, REGION_PRECISION));
+		regions.add(GeoHash.encode(latitude + latitudeDelta, longitude + longitudeDelta, REGION_PRECISION));
+
+		LocationTag closest = null;
+		double closestMiles = Double.MAX_VALUE;
+		for (String region : regions) {
+			LocationTag poi = getRegionIndex(region).find(latitude, longitude, radiusMiles);
+			if (poi != null) {
+				double miles = LocationUtil.distanceBetweenLocations(poi.getLocation(), location);
+				if (miles < closestMiles) {
+					closest = poi;
+					closestMiles = miles;
+				}
+			}
+		}
+		return closest;
+	}
+
+	private static GeofenceIndex getRegionIndex(final String region) {
+		try {
+			return REGIONS.get(region, new Callable<GeofenceIndex>() {
+				@Override
+				public GeofenceIndex call() {
+					return new GeofenceIndex(loadRegion(region), LocationUtil.TAG_RADIUS_MILES);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static List<LocationTag> loadRegion(String region) {
+		// Every geohash that starts with the region's
+		Query poiQuery = new Query(KIND).setFilter(CompositeFilterOperator.and(
+				new FilterPredicate("geohash", FilterOperator.GREATER_THAN_OR_EQUAL, region),
+				new FilterPredicate("geohash", FilterOperator.LESS_THAN, region + "~")));
+
+		List<LocationTag> pois = new ArrayList<LocationTag>();
+		Cursor cursor = null;
+		QueryResultList<Entity> page;
+		do {
+			FetchOptions fetchOptions = FetchOptions.Builder.withLimit(REGION_PAGE_SIZE);
+			if (cursor != null) {
+				fetchOptions.startCursor(cursor);
+			}
+			page = AsyncStore.prepare(poiQuery).asQueryResultList(fetchOptions);
+			for (Entity poiEntity : page) {
+				Location location = new Location();
+				location.setLatitude((Double) poiEntity.getProperty("latitude"));
+				location.setLongitude((Double) poiEntity.getProperty("longitude"));
+
+				LocationTag poi = new LocationTag();
+				poi.setId(KeyFactory.keyToString(poiEntity.getKey()));
+				poi.setLocation(location);
+				poi.setTag((String) poiEntity.getProperty("name"));
+				pois.add(poi);
+			}
+			cursor = page.getCursor();
+		} while (page.size() == REGION_PAGE_SIZE);
+		LOG.info("Loaded " + pois.size() + " points of interest in region " + region);
+		return pois;
+	}
+}
@@ -0,0 +1,83 @@
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+
+import java.util.Date;
+
+/**
+ * The records we keep of what users did: drills, sign ups and news posts.
+ * Drills and sign ups live under a parent per user, so one user's writes
+ * never hold up another's; news posts are root entities.
+ * <p>
+ * Records are written before the call returns, so a failed write fails the
+ * request or task that made it rather than losing the record.
+ */
+public class UserRecords {
+	static final String USER_KIND = "User";
+	static final String DRILLED_KIND = "drilled";
+	static final String USERINFO_KIND = "userinfo";
+	static final String NEWSPOST_KIND = "newspost";
+
+	private static final int MAX_TEXT_LENGTH = 500;
+
+	/**
+	 * The parent of everything recorded for the user.
+	 */
+	static Key userKey(String userId) {
+		return KeyFactory.createKey(USER_KIND, userId);
+	}
+
+	/**
+	 * Records a drill. The record is named after the timeline item, so
+	 * handling the same notification twice leaves one record.
+	 */
+	public static void recordDrill(String userId, String timelineId) {
+		Entity drilled = new Entity(DRILLED_KIND, timelineId, userKey(userId));
+		drilled.setProperty("userId", userId);
+		drilled.setProperty("date", new Date());
+		drilled.setProperty("timelineId", timelineId);
+		put(drilled);
+	}
+
+	public static void recordUserInfo(String userId, String accessToken) {
+		Entity userinfo = new Entity(USERINFO_KIND, userKey(userId));
+		userinfo.setProperty("created", new Date());
+		userinfo.setProperty("userId", userId);
+		userinfo.setProperty("accessToken", accessToken);
+		put(userinfo);
+	}
+
+	/**
+	 * Records a news post. Broadcast items have no timeline ID of their own,
+	 * so they are recorded with the broadcast's ID instead.
+	 * 
+	 * @param broadcastId
+	 *            the broadcast that sent the item, or 0
+	 */
+	public static void recordNewsPost(TimelineItem timelineItem, long broadcastId) {
+		Entity newsPost = new Entity(NEWSPOST_KIND);
+		newsPost.setProperty("date", new Date());
+		newsPost.setProperty("timelineId", timelineItem.getId());
+		if (broadcastId != 0) {
+			newsPost.setProperty("broadcastId", broadcastId);
+		}
+		String text = timelineItem.getText();
+		if (text != null && text.length() > MAX_TEXT_LENGTH) {
+			text = text.substring(0, MAX_TEXT_LENGTH);
+		}
+		newsPost.setProperty("timelineText", text);
+		if (timelineItem.getHtml() != null) {
+			newsPost.setUnindexedProperty("timelineHtml", new Text(timelineItem.getHtml()));
+		}
+		newsPost.setProperty("timelineCanonicalUrl", timelineItem.getCanonicalUrl());
+		put(newsPost);
+	}
+
+	private static void put(Entity entity) {
+		AsyncStore.await(AsyncStore.put(entity));
+	}
+}
@@ -0,0 +1,132 @@
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro-benchmark of {@link GeofenceIndex} against the per-call linear scan
+ * LocationUtil used before it, which built two simplelatlng LatLng objects
+ * for every tag it compared. simplelatlng is no longer a dependency, so that
+ * path is reproduced here: each comparison allocates and normalizes two
+ * points and converts the kilometre result to miles, as LatLngTool.distance
+ * did.
+ * <p>
+ * Not a test, so it is not run with the build. Run it with the test
+ * classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... com.google.glassware.GeofenceIndexBenchmark [tags]
+ * </pre>
+ */
+public class GeofenceIndexBenchmark {
+	private static final double RADIUS_MILES = LocationUtil.TAG_RADIUS_MILES;
+	private static final int QUERIES = 20000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int tagCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		Random random = new Random(42);
+		List<LocationTag> tags = new ArrayList<LocationTag>();
+		for (int i = 0; i < tagCount; i++) {
+			tags.add(tag("tag" + i, 37.7749 + (random.nextDouble() - 0.5) * 0.2,
+					-122.4194 + (random.nextDouble() - 0.5) * 0.2));
+		}
+		double[][] queries = new double[QUERIES][];
+		for (int i = 0; i < QUERIES; i++) {
+			queries[i] = new double[] { 37.7749 + (random.nextDouble() - 0.5) * 0.25,
+					-122.4194 + (random.nextDouble() - 0.5) * 0.25 };
+		}
+
+		System.out.println(tagCount + " tags, " + QUERIES + " lookups per round");
+		// The first rounds warm up the JIT; the last one counts
+		for (int round = 1; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			int oldFound = 0;
+			for (double[] query : queries) {
+				if (oldFind(tags, query[0], query[1]) != null) {
+					oldFound++;
+				}
+			}
+			long oldNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			GeofenceIndex index = new GeofenceIndex(tags, RADIUS_MILES);
+			long buildNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			int indexFound = 0;
+			for (double[] query : queries) {
+				if (index.find(query[0], query[1]) != null) {
+					indexFound++;
+				}
+			}
+			long indexNanos = System.nanoTime() - start;
+
+			if (oldFound != indexFound) {
+				throw new AssertionError("linear scan found " + oldFound + ", index found " + indexFound);
+			}
+			System.out.println("round " + round + ": linear LatLng scan " + oldNanos / QUERIES
+					+ " ns/lookup, index " + indexNanos / QUERIES + " ns/lookup (built in "
+					+ buildNanos / 1000 + " us), " + indexFound + " found");
+		}
+	}
+
+	/** The closest tag within the radius, the way LocationUtil found it before the index. */
+	private static LocationTag oldFind(List<LocationTag> tags, double latitude, double longitude) {
+		Location current = new Location();
+		current.setLatitude(latitude);
+		current.setLongitude(longitude);
+		LocationTag closest = null;
+		double closestMiles = RADIUS_MILES;
+		for (LocationTag tag : tags) {
+			double miles = oldDistance(tag.getLocation(), current);
+			if (miles < closestMiles) {
+				closest = tag;
+				closestMiles = miles;
+			}
+		}
+		return closest;
+	}
+
+	/** LocationUtil.distanceBetweenLocations as it was with simplelatlng. */
+	private static double oldDistance(Location location1, Location location2) {
+		LatLng point1 = new LatLng(location1.getLatitude(), location1.getLongitude());
+		LatLng point2 = new LatLng(location2.getLatitude(), location2.getLongitude());
+		return LatLng.distanceKilometres(point1, point2) / 1.609344;
+	}
+
+	/** Stand-in for simplelatlng's LatLng: a normalized point, allocated per comparison. */
+	private static class LatLng {
+		private final double latitude;
+		private final double longitude;
+
+		LatLng(double latitude, double longitude) {
+			this.latitude = Math.max(-90, Math.min(90, latitude));
+			double wrapped = longitude % 360;
+			this.longitude = wrapped > 180 ? wrapped - 360 : (wrapped <= -180 ? wrapped + 360 : wrapped);
+		}
+
+		static double distanceKilometres(LatLng point1, LatLng point2) {
+			double lat1 = Math.toRadians(point1.latitude);
+			double lat2 = Math.toRadians(point2.latitude);
+			double deltaLat = lat2 - lat1;
+			double deltaLng = Math.toRadians(point2.longitude - point1.longitude);
+			double a = Math.sin(deltaLat / 2) * Math.sin(deltaLat / 2) + Math.cos(lat1) * Math.cos(lat2)
+					* Math.sin(deltaLng / 2) * Math.sin(deltaLng / 2);
+			return 2 * 6371.009 * Math.asin(Math.sqrt(a));
+		}
+	}
+
+	private static LocationTag tag(String name, double latitude, double longitude) {
+		Location location = new Location();
+		location.setLatitude(latitude);
+		location.setLongitude(longitude);
+		LocationTag tag = new LocationTag();
+		tag.setId(name);
+		tag.setTag(name);
+		tag.setLocation(location);
+		return tag;
+	}
+}
@@ -0,0 +1,120 @@
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.mirror.model.Location;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link GeofenceIndex} against the linear scan over every tag that
+ * it replaced, and {@link GeoMath} against known distances.
+ */
+public class GeofenceIndexTest {
+	private static final double RADIUS_MILES = LocationUtil.TAG_RADIUS_MILES;
+
+	/** Places to scatter tags around, including both sides of 180 degrees. */
+	private static final double[][] CENTERS = { { 37.7749, -122.4194 }, { 51.5074, -0.1278 },
+			{ -33.8688, 151.2093 }, { 64.8378, -147.7164 }, { -16.5, 179.99 }, { -16.5, -179.99 }, { 0, 0 } };
+
+	@Test
+	public void haversineMatchesKnownDistances() {
+		// San Francisco to Los Angeles, and London to Paris
+		assertEquals(347.4, GeoMath.haversineMiles(37.7749, -122.4194, 34.0522, -118.2437), 0.5);
+		assertEquals(213.5, GeoMath.haversineMiles(51.5074, -0.1278, 48.8566, 2.3522), 0.5);
+		assertEquals(0, GeoMath.haversineMiles(10, 20, 10, 20), 0);
+	}
+
+	@Test
+	public void emptyIndexFindsNothing() {
+		assertNull(new GeofenceIndex(new ArrayList<LocationTag>(), RADIUS_MILES).find(37.7749, -122.4194));
+	}
+
+	@Test
+	public void findsTagAcrossTheAntimeridian() {
+		List<LocationTag> tags = new ArrayList<LocationTag>();
+		LocationTag tag = tag("east", -16.5, 179.9995);
+		tags.add(tag);
+		GeofenceIndex index = new GeofenceIndex(tags, RADIUS_MILES);
+
+		assertSame(tag, index.find(-16.5, -179.9995));
+		assertNull(index.find(-16.5, -179.99));
+	}
+
+	@Test
+	public void matchesLinearScan() {
+		Random random = new Random(42);
+		List<LocationTag> tags = new ArrayList<LocationTag>();
+		for (int i = 0; i < 2000; i++) {
+			double[] center = CENTERS[i % CENTERS.length];
+			tags.add(tag("tag" + i, center[0] + (random.nextDouble() - 0.5) * 0.05,
+					wrap(center[1] + (random.nextDouble() - 0.5) * 0.05)));
+		}
+		GeofenceIndex index = new GeofenceIndex(tags, RADIUS_MILES);
+
+		int found = 0;
+		for (int i = 0; i < 20000; i++) {
+			double[] center = CENTERS[i % CENTERS.length];
+			double latitude = center[0] + (random.nextDouble() - 0.5) * 0.06;
+			double longitude = wrap(center[1] + (random.nextDouble() - 0.5) * 0.06);
+
+			LocationTag expected = linearScan(tags, latitude, longitude);
+			LocationTag actual = index.find(latitude, longitude);
+			if (expected == null) {
+				assertNull("at " + latitude + "," + longitude, actual);
+			} else {
+				assertNotNull("at " + latitude + "," + longitude, actual);
+				// Ties may pick either tag, so compare distances
+				assertEquals(distance(expected, latitude, longitude), distance(actual, latitude, longitude), 1e-9);
+				found++;
+			}
+		}
+		// Make sure the comparison covered both outcomes
+		assertTrue(found > 1000 && found < 19000);
+	}
+
+	/**
+	 * The closest tag within the radius, looking at every tag, as
+	 * LocationUtil did before it had an index.
+	 */
+	private static LocationTag linearScan(List<LocationTag> tags, double latitude, double longitude) {
+		LocationTag closest = null;
+		double closestMiles = RADIUS_MILES;
+		for (LocationTag tag : tags) {
+			double miles = distance(tag, latitude, longitude);
+			if (miles < closestMiles) {
+				closest = tag;
+				closestMiles = miles;
+			}
+		}
+		return closest;
+	}
+
+	private static double distance(LocationTag tag, double latitude, double longitude) {
+		return GeoMath.haversineMiles(latitude, longitude, tag.getLocation().getLatitude(), tag.getLocation()
+				.getLongitude());
+	}
+
+	private static double wrap(double longitude) {
+		return longitude > 180 ? longitude - 360 : (longitude < -180 ? longitude + 360 : longitude);
+	}
+
+	private static LocationTag tag(String name, double latitude, double longitude) {
+		Location location = new Location();
+		location.setLatitude(latitude);
+		location.setLongitude(longitude);
+		LocationTag tag = new LocationTag();
+		tag.setId(name);
+		tag.setTag(name);
+		tag.setLocation(location);
+		return tag;
+	}
+}
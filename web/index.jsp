@@ -15,10 +15,14 @@ limitations under the License.
 -->
 <%@ page import="com.google.api.client.auth.oauth2.Credential" %>
 <%@ page import="com.google.api.services.mirror.model.Contact" %>
+<%@ page import="com.google.glassware.AsyncStore" %>
+<%@ page import="com.google.glassware.AuthContext" %>
+<%@ page import="com.google.glassware.ListableAppEngineCredentialStore" %>
 <%@ page import="com.google.glassware.MirrorClient" %>
 <%@ page import="com.google.glassware.WebUtil" %>
 <%@ page
     import="java.util.List" %>
+<%@ page import="java.util.concurrent.Future" %>
 <%@ page import="com.google.api.services.mirror.model.TimelineItem" %>
 <%@ page import="com.google.api.services.mirror.model.Subscription" %>
 <%@ page import="com.google.api.services.mirror.model.Attachment" %>
@@ -30,18 +34,21 @@ limitations under the License.
 
 <!doctype html>
 <%
-  String userId = com.google.glassware.AuthUtil.getUserId(request);
+  AuthContext authContext = AuthContext.get(request);
+  String userId = authContext.getUserId();
   String appBaseUrl = WebUtil.buildUrl(request, "/");
 
-  Credential credential = com.google.glassware.AuthUtil.getCredential(userId);
-  Userinfo userInfo = MirrorClient.getUserinfo(userId);
+  Credential credential = authContext.getCredential();
+  // The stored profile is read while the Mirror requests below run
+  Future<Userinfo> pendingUserInfo = ListableAppEngineCredentialStore.getStoredUserinfoAsync(userId);
 
-  Contact contact = MirrorClient.getContact(credential, MainServlet.CONTACT_NAME);
+  Contact contact = MirrorClient.getContact(credential, userId, MainServlet.CONTACT_NAME);
 
-  List<TimelineItem> timelineItems = MirrorClient.listItems(credential, 3L).getItems();
+  List<TimelineItem> timelineItems = MirrorClient.listItems(credential, userId, 3L).getItems();
 
 
-  List<Subscription> subscriptions = MirrorClient.listSubscriptions(credential).getItems();
+  List<Subscription> subscriptions = MirrorClient.listSubscriptions(credential, userId).getItems();
+  Userinfo userInfo = AsyncStore.await(pendingUserInfo);
   boolean timelineSubscriptionExists = false;
   boolean locationSubscriptionExists = false;
 
@@ -202,6 +209,11 @@ Given that Plano is a suburb that grew because of the car, the city doesn’t ra
         <input type="hidden" name="canonicalUrl" value="http://www.dallasnews.com/news/jfk50/reflect/20130522-dealey-plaza-memorial-planned-for-50th-anniversary-of-jfk-assassination.ece">
         <button class="btn" type="submit">A card to all users</button>
       </form>
+      <form action="<%= WebUtil.buildUrl(request, "/main") %>" method="post">
+        <input type="hidden" name="operation" value="resumeBroadcast">
+        <input type="text" name="broadcastId" placeholder="Broadcast ID"><br/>
+        <button class="btn" type="submit">Resume a broadcast</button>
+      </form>
       <form action="<%= WebUtil.buildUrl(request, "/main") %>" method="post">
         <input type="hidden" name="operation" value="insertRemindMe">
         <button class="btn" type="submit">Insert Remind Me card</button>
@@ -310,7 +322,9 @@ Given that Plano is a suburb that grew because of the car, the city doesn’t ra
           <%
           if (timelineItem.getAttachments() != null) {
             for (Attachment attachment : timelineItem.getAttachments()) {
-              if (MirrorClient.getAttachmentContentType(credential, timelineItem.getId(), attachment.getId()).startsWith("image")) { %>
+              String attachmentType = attachment.getContentType() != null ? attachment.getContentType()
+                  : MirrorClient.getAttachmentContentType(credential, userId, timelineItem.getId(), attachment.getId());
+              if (attachmentType.startsWith("image")) { %>
           <img src="<%= appBaseUrl + "attachmentproxy?attachment=" +
             attachment.getId() + "&timelineItem=" + timelineItem.getId() %>">
           <% } else { %>